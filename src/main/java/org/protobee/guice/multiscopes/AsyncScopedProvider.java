@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.spi.Dependency;
+import com.google.inject.spi.HasDependencies;
+import com.google.inject.spi.Toolable;
+
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Provides the future of an object in the current scope instance, creating the object on an
+ * executor. This provider is bound in the multiscope, so it's called once per scope instance (under
+ * the creation lock of the future's key, which is only held while the creation is submitted), and
+ * every thread in the instance gets the same future.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+class AsyncScopedProvider<T> implements Provider<ListenableFuture<T>>, HasDependencies {
+
+	private final Key<T> key;
+	private final Key<ScopeInstance> instanceKey;
+	private final Key<? extends Executor> executorKey;
+	private Provider<ScopeInstance> instances;
+	private Provider<? extends Executor> executors;
+
+	AsyncScopedProvider(Key<T> key, Key<ScopeInstance> instanceKey, Key<? extends Executor> executorKey) {
+		this.key = key;
+		this.instanceKey = instanceKey;
+		this.executorKey = executorKey;
+	}
+
+	@Inject @Toolable void init(Injector inj) {
+		instances = inj.getProvider(instanceKey);
+		executors = inj.getProvider(executorKey);
+	}
+
+	@Override public Set<Dependency<?>> getDependencies() {
+		return ImmutableSet.<Dependency<?>>of(Dependency.get(instanceKey), Dependency.get(executorKey));
+	}
+
+	@Override public ListenableFuture<T> get() {
+		final ScopeInstance instance = instances.get();
+		final SettableFuture<T> future = SettableFuture.create();
+		try {
+			executors.get().execute(new Runnable() {
+				@Override public void run() {
+					try {
+						future.set(instance.get(key));
+					} catch (Throwable e) {
+						future.setException(e);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			future.setException(e);
+		}
+		return future;
+	}
+
+	@Override public String toString() {
+		return key + "-AsyncScopedProvider";
+	}
+}
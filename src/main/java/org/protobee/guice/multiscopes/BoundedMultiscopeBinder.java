@@ -49,6 +49,15 @@ public interface BoundedMultiscopeBinder extends MultiscopeBinder {
 	 */
 	InstancePrescoper prescopeInstance(Class<? extends Annotation> instanceAnnotation);
 
+	/**
+	 * Interns the {@link PrescopeType#EAGER} and {@link PrescopeType#LAZY} prescoped objects of the
+	 * instances, so instances that prescope equal objects share one of them. The prescoped objects
+	 * have to be immutable, with value-based equals and hashCode. Interned objects are held weakly,
+	 * and the number of copies that were replaced by an equal object is in the
+	 * {@link MultiscopeMetrics} of the multiscope.
+	 */
+	BoundedMultiscopeBinder internPrescopedValues();
+
 	/**
 	 * Specifies how the prescoped object will be populated in the scope.
 	 */
@@ -60,7 +69,13 @@ public interface BoundedMultiscopeBinder extends MultiscopeBinder {
 		/**
 		 * The object is fetched only when requested (on injection).
 		 */
-		LAZY
+		LAZY,
+		/**
+		 * The object is a {@link MappedRecords}, which is populated in the scope on scope creation and
+		 * maps its file on first access. Instances that prescope records of the same file share the
+		 * mapping. The key's type has to be {@link MappedRecords}.
+		 */
+		MAPPED
 	}
 
 	/**
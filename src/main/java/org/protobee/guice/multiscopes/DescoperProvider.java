@@ -29,6 +29,7 @@ import com.google.inject.Provider;
 import com.google.inject.spi.Dependency;
 import com.google.inject.spi.HasDependencies;
 import com.google.inject.spi.Toolable;
+import org.protobee.guice.multiscopes.scopes.ScopeContext;
 import org.protobee.guice.multiscopes.util.Descoper;
 
 import java.util.Set;
@@ -36,10 +37,12 @@ import java.util.Set;
 class DescoperProvider implements Provider<Descoper>, HasDependencies {
 
 	private final Multiscope scope;
+	private final int ordinal;
 	private Provider<ScopeInstance> instanceProvider;
 
 	public DescoperProvider(Multiscope scope) {
 		this.scope = scope;
+		this.ordinal = ScopeContext.ordinalOf(scope);
 	}
 
 	@Inject @Toolable void init(Injector inj) {
@@ -55,6 +58,9 @@ class DescoperProvider implements Provider<Descoper>, HasDependencies {
 	}
 
 	@Override public Descoper get() {
+		if (ordinal != -1) {
+			return new TableDescoper(scope, ordinal);
+		}
 		return new Descoper() {
 			private ScopeInstance instance = null;
 
@@ -75,4 +81,37 @@ class DescoperProvider implements Provider<Descoper>, HasDependencies {
 			}
 		};
 	}
+
+	/**
+	 * Descoper for multiscopes that keep their scope state in the {@link ScopeContext}. Exits the
+	 * instance straight from the context of the calling thread instead of looking it up through the
+	 * injector, so descoping and rescoping don't allocate.
+	 */
+	private static class TableDescoper implements Descoper {
+		private final Multiscope scope;
+		private final int ordinal;
+		private ScopeInstance instance = null;
+
+		TableDescoper(Multiscope scope, int ordinal) {
+			this.scope = scope;
+			this.ordinal = ordinal;
+		}
+
+		@Override public void descope() throws IllegalStateException {
+			if (instance != null) {
+				throw new IllegalStateException("Can't call descope() twice in a row, must call rescope() first.");
+			}
+			instance = ScopeContext.current().exit(ordinal);
+		}
+
+		@Override public void rescope() throws IllegalStateException {
+			if (scope.isInScope()) {
+				throw new IllegalStateException("Cannot rescope when we're already in " + scope);
+			}
+			if (instance != null) {
+				instance.enterScope();
+				instance = null;
+			}
+		}
+	}
 }
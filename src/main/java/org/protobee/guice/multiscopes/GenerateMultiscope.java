@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes;
+
+import java.lang.annotation.*;
+
+/**
+ * Declares a multiscope whose annotations and module are generated at compile time by
+ * {@link org.protobee.guice.multiscopes.processor.MultiscopeProcessor}. For a declaration
+ *
+ * <pre>
+ * &#064;GenerateMultiscope(value = &quot;Battlestar&quot;, scoped = { CommandDeck.class, BattlestarFighterRoster.class })
+ * interface BattlestarDeclaration {}
+ * </pre>
+ *
+ * the processor generates, in the package of the declaration:
+ * <ul>
+ * <li>{@code BattlestarScope}, the scope annotation
+ * <li>{@code Battlestar}, the scope binding annotation
+ * <li>{@code NewBattlestar}, the new scope instance binding annotation
+ * <li>{@code BattlestarScopeModule}, which binds the multiscope with those annotations and binds
+ * every scoped class in the scope. The module has a {@link ScopedKey} constant for each scoped
+ * class, like {@code COMMAND_DECK_KEY}, for putting objects in scope instances. The scoped
+ * classes get the first slots of the provider cache of the instances, in declaration order (see
+ * {@link MultiscopeBinder#preassignProviderSlots}).
+ * </ul>
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+@Documented @Target(ElementType.TYPE) @Retention(RetentionPolicy.SOURCE) public @interface GenerateMultiscope {
+
+	/**
+	 * The name of the multiscope, which is used as the scope binding annotation name.
+	 */
+	String value();
+
+	/**
+	 * The classes to bind in the scope.
+	 */
+	Class<?>[] scoped() default {};
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes;
+
+import javax.annotation.Nullable;
+
+/**
+ * Keeps a scope instance of a multiscope per runtime key, like a tenant or session id. Bound with
+ * {@link MultiscopeBinder#bindKeyedInstances(Class, String)}, and injected as
+ * {@code KeyedScopeInstances<K>} annotated with the scope binding annotation.
+ * <br/><br/>
+ * The instances are kept in a concurrent cache, which can be bounded by size or idle time. Instances
+ * that are evicted or invalidated are closed once no thread is in them (see
+ * {@link ScopeInstance#closeWhenDrained()}), which closes their {@link java.io.Closeable} objects and
+ * gives their place back to a live instance limit. Threads that are in them stay in them until they
+ * exit, and the next {@link #instanceFor(Object)} for the key creates a new instance. The cache
+ * evicts expired instances during its other operations, so an idle cache doesn't close them.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public interface KeyedScopeInstances<K> {
+
+	/**
+	 * Returns the scope instance for the key, creating it if there isn't one. Concurrent calls for
+	 * the same key get the same instance, and calls for different keys don't wait on each other.
+	 *
+	 * @throws NullPointerException if the key is null
+	 */
+	ScopeInstance instanceFor(K key);
+
+	/**
+	 * @return the scope instance for the key, or null if there isn't one
+	 */
+	@Nullable ScopeInstance getIfPresent(K key);
+
+	/**
+	 * Forgets the scope instance of the key, if there is one, and closes it once no thread is in it.
+	 */
+	void invalidate(K key);
+
+	/**
+	 * @return the approximate number of keys with a scope instance
+	 */
+	long size();
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheBuilderSpec;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.spi.Dependency;
+import com.google.inject.spi.HasDependencies;
+import com.google.inject.spi.Toolable;
+
+import java.util.Set;
+
+class KeyedScopeInstancesProvider<K> implements Provider<KeyedScopeInstances<K>>, HasDependencies {
+
+	private final CacheBuilderSpec cacheSpec;
+	private final Key<ScopeInstance> newInstanceKey;
+	private KeyedScopeInstances<K> instances;
+
+	KeyedScopeInstancesProvider(CacheBuilderSpec cacheSpec, Key<ScopeInstance> newInstanceKey) {
+		this.cacheSpec = cacheSpec;
+		this.newInstanceKey = newInstanceKey;
+	}
+
+	@Inject @Toolable void init(Injector inj) {
+		instances = new CachedScopeInstances<K>(cacheSpec, inj.getProvider(newInstanceKey));
+	}
+
+	@Override public Set<Dependency<?>> getDependencies() {
+		return ImmutableSet.<Dependency<?>>of(Dependency.get(newInstanceKey));
+	}
+
+	@Override public KeyedScopeInstances<K> get() {
+		return instances;
+	}
+
+	@Override public String toString() {
+		return newInstanceKey.getAnnotationType().getSimpleName() + "-KeyedScopeInstancesProvider";
+	}
+
+	private static class CachedScopeInstances<K> implements KeyedScopeInstances<K> {
+		private final LoadingCache<K, ScopeInstance> cache;
+
+		@SuppressWarnings("unchecked") CachedScopeInstances(CacheBuilderSpec cacheSpec, final Provider<ScopeInstance> newInstances) {
+			CacheBuilder<K, ScopeInstance> builder = (CacheBuilder<K, ScopeInstance>) (CacheBuilder<?, ?>) CacheBuilder.from(cacheSpec);
+			this.cache = builder.removalListener(new RemovalListener<K, ScopeInstance>() {
+				@Override public void onRemoval(RemovalNotification<K, ScopeInstance> notification) {
+					// nothing can get the instance from the cache anymore, so it's closed once threads leave it
+					if (notification.getCause() != RemovalCause.REPLACED && notification.getValue() != null) {
+						notification.getValue().closeWhenDrained();
+					}
+				}
+			}).build(new CacheLoader<K, ScopeInstance>() {
+				@Override public ScopeInstance load(K key) {
+					return newInstances.get();
+				}
+			});
+		}
+
+		@Override public ScopeInstance instanceFor(K key) {
+			Preconditions.checkNotNull(key, "key");
+			try {
+				return cache.getUnchecked(key);
+			} catch (UncheckedExecutionException e) {
+				throw Throwables.propagate(e.getCause());
+			}
+		}
+
+		@Override public ScopeInstance getIfPresent(K key) {
+			return cache.getIfPresent(key);
+		}
+
+		@Override public void invalidate(K key) {
+			cache.invalidate(key);
+		}
+
+		@Override public long size() {
+			return cache.size();
+		}
+	}
+}
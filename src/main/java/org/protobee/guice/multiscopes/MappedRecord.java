@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A flyweight over one fixed size record of {@link MappedRecords}. Subclasses read their fields
+ * with the absolute getters of {@link #buffer()}, relative to {@link #offset()}, for example
+ * {@code buffer().getDouble(offset() + 4)}. A flyweight can be moved to another record with
+ * {@link MappedRecords#at(int, MappedRecord)}, so iterating over records doesn't allocate.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public abstract class MappedRecord {
+
+	private ByteBuffer buffer;
+	private int offset;
+
+	final void wrap(ByteBuffer buffer, int offset) {
+		this.buffer = buffer;
+		this.offset = offset;
+	}
+
+	/**
+	 * @return the read-only buffer of the whole file
+	 */
+	protected final ByteBuffer buffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return the offset of this record in the buffer
+	 */
+	protected final int offset() {
+		return offset;
+	}
+}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
+import com.google.inject.Provider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Read-only fixed size records in a local file, read through typed {@link MappedRecord}
+ * flyweights. The file is memory-mapped on first access, and all the {@link MappedRecords} of the
+ * same file share the mapping while any of them is reachable, so large datasets cost page cache
+ * instead of heap, and are shared by every scope instance they're prescoped in (see
+ * {@link BoundedMultiscopeBinder.PrescopeType#MAPPED}).
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public final class MappedRecords<T extends MappedRecord> {
+
+	// canonical file -> mapping, dropped when no records reference the mapping anymore
+	private static final ConcurrentMap<File, ByteBuffer> mappings = new MapMaker().weakValues().makeMap();
+
+	private final File file;
+	private final int recordSize;
+	private final Provider<? extends T> flyweights;
+	private volatile ByteBuffer buffer = null;
+
+	private MappedRecords(File file, int recordSize, Provider<? extends T> flyweights) {
+		this.file = file;
+		this.recordSize = recordSize;
+		this.flyweights = flyweights;
+	}
+
+	/**
+	 * Creates the records of the given file, which isn't opened until the records are accessed.
+	 *
+	 * @param recordSize the size of each record, in bytes
+	 * @param flyweights creates the flyweights returned by {@link #get(int)}
+	 */
+	public static <T extends MappedRecord> MappedRecords<T> of(File file, int recordSize, Provider<? extends T> flyweights) {
+		Preconditions.checkNotNull(file, "file");
+		Preconditions.checkArgument(recordSize > 0, "recordSize must be positive");
+		Preconditions.checkNotNull(flyweights, "flyweights");
+		return new MappedRecords<T>(file, recordSize, flyweights);
+	}
+
+	/**
+	 * @return the number of records in the file
+	 * @throws IllegalStateException if the file can't be mapped
+	 */
+	public int size() {
+		return buffer().capacity() / recordSize;
+	}
+
+	/**
+	 * @return a new flyweight of the record at the index
+	 * @throws IllegalStateException if the file can't be mapped
+	 */
+	public T get(int index) {
+		return at(index, flyweights.get());
+	}
+
+	/**
+	 * Moves the given flyweight to the record at the index.
+	 *
+	 * @return the flyweight
+	 * @throws IllegalStateException if the file can't be mapped
+	 */
+	public T at(int index, T flyweight) {
+		ByteBuffer buffer = buffer();
+		Preconditions.checkElementIndex(index, buffer.capacity() / recordSize);
+		flyweight.wrap(buffer, index * recordSize);
+		return flyweight;
+	}
+
+	/**
+	 * @return a read-only buffer over the whole file, for bulk reads
+	 * @throws IllegalStateException if the file can't be mapped
+	 */
+	public ByteBuffer asByteBuffer() {
+		return buffer().duplicate();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getRecordSize() {
+		return recordSize;
+	}
+
+	private ByteBuffer buffer() {
+		ByteBuffer buffer = this.buffer;
+		if (buffer == null) {
+			buffer = mapping(file);
+			this.buffer = buffer;
+		}
+		return buffer;
+	}
+
+	private static ByteBuffer mapping(File file) {
+		File canonical;
+		try {
+			canonical = file.getCanonicalFile();
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't resolve " + file, e);
+		}
+		ByteBuffer buffer = mappings.get(canonical);
+		if (buffer != null) {
+			return buffer;
+		}
+		synchronized (mappings) {
+			buffer = mappings.get(canonical);
+			if (buffer == null) {
+				buffer = map(canonical);
+				mappings.put(canonical, buffer);
+			}
+			return buffer;
+		}
+	}
+
+	private static ByteBuffer map(File file) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				long length = raf.length();
+				Preconditions.checkState(length <= Integer.MAX_VALUE, "%s is larger than 2GB", file);
+				// the mapping stays valid after the file is closed
+				return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length).asReadOnlyBuffer();
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't map " + file, e);
+		}
+	}
+
+	@Override public String toString() {
+		return "{ file: " + file + ", recordSize: " + recordSize + "}";
+	}
+}
@@ -21,11 +21,17 @@
 package org.protobee.guice.multiscopes;
 
 import com.google.common.base.Preconditions;
+import com.google.inject.Binding;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
 import com.google.inject.Key;
 import com.google.inject.Scope;
+import com.google.inject.TypeLiteral;
+import com.google.inject.spi.Toolable;
 
 import java.lang.annotation.Annotation;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A scope that supports multiple instances of the scope itself. After binding your multiscope with
@@ -46,18 +52,33 @@ import java.util.Map;
  * <br/>
  * bounded multiscopes are similar, except instead of having a 'newScopeInstance' annoatation, they
  * have a bound set of instances that is decided during injection (similar to a multiset, so other
- * guice modules can add instances)
+ * guice modules can add instances)<br/>
+ * <br/>
+ * As a {@link ScopedLookup}, a multiscope probes the scope instance entered on the current thread.
  *
  * @author Daniel Murphy (daniel@dmurph.com)
  */
-public abstract class Multiscope implements Scope {
+public abstract class Multiscope implements Scope, ScopedLookup {
 
 	private final Class<? extends Annotation> bindingAnnotation;
+	private final MultiscopeSettings settings = new MultiscopeSettings();
+	private final MultiscopeMetrics metrics = new MultiscopeMetrics();
 
 	public Multiscope(Class<? extends Annotation> bindingAnnotation) {
 		this.bindingAnnotation = Preconditions.checkNotNull(bindingAnnotation, "bindingAnnotation");
 	}
 
+	@Inject @Toolable void applySettings(Injector injector) {
+		Binding<Set<ScopeSetting>> settingsBinding = injector.getExistingBinding(Key.get(new TypeLiteral<Set<ScopeSetting>>() {
+		}, bindingAnnotation));
+		if (settingsBinding == null) {
+			return;
+		}
+		for (ScopeSetting setting : settingsBinding.getProvider().get()) {
+			setting.applyTo(settings);
+		}
+	}
+
 	/**
 	 * If we're in this multiscope on the current thread.
 	 */
@@ -75,5 +96,19 @@ public abstract class Multiscope implements Scope {
 		return bindingAnnotation;
 	}
 
+	/**
+	 * The settings given on the {@link MultiscopeBinder}s for this multiscope.
+	 */
+	public MultiscopeSettings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * The runtime counters of this multiscope.
+	 */
+	public MultiscopeMetrics getMetrics() {
+		return metrics;
+	}
+
 	protected abstract ScopeInstance createScopeInstance(final Map<Key<?>, Object> scopeMap);
 }
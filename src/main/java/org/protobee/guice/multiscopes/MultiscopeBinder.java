@@ -23,7 +23,9 @@ package org.protobee.guice.multiscopes;
 import com.google.inject.Key;
 import com.google.inject.binder.LinkedBindingBuilder;
 
+import java.io.File;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by {@link Multiscopes#newBinder(com.google.inject.Binder, Class, Class, Class)}.
@@ -33,4 +35,92 @@ import java.util.Map;
  */
 public interface MultiscopeBinder {
 	LinkedBindingBuilder<Map<Key<?>, Object>> bindScopeStorageMap();
+
+	/**
+	 * Bounds how long a thread waits for another thread that is creating the same scoped key. When
+	 * the timeout passes a {@link ScopeDeadlockException} is thrown listing the threads, scope
+	 * instances and keys that are waiting on each other. By default threads wait forever.
+	 */
+	MultiscopeBinder withCreationTimeout(long timeout, TimeUnit unit);
+
+	/**
+	 * Makes threads waiting to create a scoped object periodically check if the threads they wait on
+	 * are (transitively) waiting on them. A detected cycle fails immediately with a
+	 * {@link ScopeDeadlockException} instead of waiting for the creation timeout.
+	 */
+	MultiscopeBinder detectCreationCycles();
+
+	/**
+	 * Limits how many instances of this multiscope can be live at the same time. An instance is live
+	 * from when it's created until it's {@link ScopeInstance#close() closed}, so instances that are
+	 * dropped without closing them keep their place. When the limit is reached new instances are
+	 * handled by the given policy, where {@link AdmissionPolicy#BLOCK} waits forever. The number of
+	 * live instances is in the {@link MultiscopeMetrics} of the multiscope.
+	 *
+	 * @throws IllegalStateException if this is not a multiscope with new scope instances
+	 */
+	MultiscopeBinder limitLiveInstances(int maxLiveInstances, AdmissionPolicy policy);
+
+	/**
+	 * Like {@link #limitLiveInstances(int, AdmissionPolicy)}, where {@link AdmissionPolicy#BLOCK}
+	 * waits at most the given timeout before failing with a {@link ScopeAdmissionException}.
+	 */
+	MultiscopeBinder limitLiveInstances(int maxLiveInstances, AdmissionPolicy policy, long timeout, TimeUnit unit);
+
+	/**
+	 * Memoizes the results of the {@link ScopeCached} methods for this multiscope in the scope
+	 * instances, in a cache per instance configured with a
+	 * {@link com.google.common.cache.CacheBuilderSpec}, like {@code "maximumSize=1000"}, or an empty
+	 * string for an unbounded cache. Cache hits and misses are counted in the
+	 * {@link MultiscopeMetrics} of the multiscope.
+	 *
+	 * @throws IllegalArgumentException if the cache spec can't be parsed
+	 */
+	MultiscopeBinder enableScopeCaching(String cacheSpec);
+
+	/**
+	 * Binds {@link ScopePassivation}, annotated with the scope binding annotation, which passivates
+	 * instances of this multiscope that were idle for the given time. The objects of the given keys
+	 * are written to a memory-mapped spill file in the given directory with Java serialization, and
+	 * restored one key at a time when they are looked up again. A restored object is a copy, so only
+	 * keys whose objects aren't referenced from outside of their instance should be given.
+	 *
+	 * @throws IllegalArgumentException if no keys are given
+	 */
+	MultiscopeBinder passivateIdleInstances(long idleTime, TimeUnit unit, File spillDirectory, Key<?>... passivatedKeys);
+
+	/**
+	 * Same as {@link #passivateIdleInstances(long, TimeUnit, File, Key...)}, with the given
+	 * serializer, which decides which objects are passivated.
+	 */
+	MultiscopeBinder passivateIdleInstances(long idleTime, TimeUnit unit, File spillDirectory, ScopeSerializer serializer);
+
+	/**
+	 * {@link ScopeInstance#freeze() Freezes} instances of this multiscope once their objects were
+	 * found by the given number of lookups in a row without an object being created or put in them.
+	 * The count is approximate when threads look up objects at the same time.
+	 */
+	MultiscopeBinder freezeAfterReads(int reads);
+
+	/**
+	 * Binds {@link KeyedScopeInstances}{@code <K>}, annotated with the scope binding annotation, which
+	 * keeps a scope instance of this multiscope per key. The instance cache is configured with a
+	 * {@link com.google.common.cache.CacheBuilderSpec}, like
+	 * {@code "maximumSize=10000,expireAfterAccess=30m"}, or an empty string for an unbounded cache.
+	 *
+	 * @throws IllegalArgumentException if the cache spec can't be parsed
+	 * @throws IllegalStateException    if this is a bounded multiscope, whose instances are fixed
+	 */
+	<K> MultiscopeBinder bindKeyedInstances(Class<K> keyType, String cacheSpec);
+
+	/**
+	 * Gives the scoped providers of the keys the first slots of the provider cache of the instances,
+	 * in the given order, so the slot of a key is the same in every injector and instances size
+	 * their cache for all of the keys on the first cached value. Scoped providers of other keys get
+	 * the slots after them. Unlike the other settings this one is applied right away, because the
+	 * scoped providers are created while the injector is built.
+	 *
+	 * @throws IllegalArgumentException if a key is given twice
+	 */
+	MultiscopeBinder preassignProviderSlots(Key<?>... keys);
 }
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes;
+
+import org.protobee.guice.multiscopes.util.StripedCounter;
+
+/**
+ * Runtime counters of a {@link Multiscope}, for monitoring. The counters are updated by the
+ * multiscope, and are {@link StripedCounter}s so updating them doesn't contend.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public final class MultiscopeMetrics {
+
+	private final StripedCounter liveInstances = new StripedCounter();
+	private final StripedCounter rejectedInstances = new StripedCounter();
+	private final StripedCounter evictedInstances = new StripedCounter();
+	private final StripedCounter cacheHits = new StripedCounter();
+	private final StripedCounter cacheMisses = new StripedCounter();
+	private final StripedCounter passivatedObjects = new StripedCounter();
+	private final StripedCounter restoredObjects = new StripedCounter();
+	private final StripedCounter internedObjects = new StripedCounter();
+
+	MultiscopeMetrics() {
+	}
+
+	/**
+	 * @return the number of instances that were created and not yet closed, when the multiscope
+	 * limits its live instances (see {@link MultiscopeBinder#limitLiveInstances(int, AdmissionPolicy)})
+	 */
+	public StripedCounter getLiveInstances() {
+		return liveInstances;
+	}
+
+	/**
+	 * @return the number of new instances that were refused because the live instance limit was
+	 * reached
+	 */
+	public StripedCounter getRejectedInstances() {
+		return rejectedInstances;
+	}
+
+	/**
+	 * @return the number of idle instances that were closed to make room for new instances
+	 */
+	public StripedCounter getEvictedInstances() {
+		return evictedInstances;
+	}
+
+	/**
+	 * @return the number of {@link ScopeCached} calls answered from the cache of a scope instance
+	 */
+	public StripedCounter getCacheHits() {
+		return cacheHits;
+	}
+
+	/**
+	 * @return the number of {@link ScopeCached} calls that had to call the method
+	 */
+	public StripedCounter getCacheMisses() {
+		return cacheMisses;
+	}
+
+	/**
+	 * @return the number of objects written to the spill file by {@link ScopePassivation}
+	 */
+	public StripedCounter getPassivatedObjects() {
+		return passivatedObjects;
+	}
+
+	/**
+	 * @return the number of passivated objects read back from the spill file
+	 */
+	public StripedCounter getRestoredObjects() {
+		return restoredObjects;
+	}
+
+	/**
+	 * @return the number of prescoped objects that were dropped for an equal object already prescoped
+	 * in another instance, which is the number of copies saved by
+	 * {@link BoundedMultiscopeBinder#internPrescopedValues()}
+	 */
+	public StripedCounter getInternedObjects() {
+		return internedObjects;
+	}
+
+	@Override public String toString() {
+		return "{ liveInstances: " + liveInstances + ", rejectedInstances: " + rejectedInstances + ", evictedInstances: " + evictedInstances + ", cacheHits: " + cacheHits + ", cacheMisses: " + cacheMisses + ", passivatedObjects: " + passivatedObjects + ", restoredObjects: " + restoredObjects + ", internedObjects: " + internedObjects + "}";
+	}
+}
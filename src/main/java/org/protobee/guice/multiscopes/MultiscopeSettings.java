@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Key;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runtime settings of a {@link Multiscope}. Settings are specified on the {@link MultiscopeBinder}
+ * and applied to the multiscope when the injector is created, so they can be given from any module
+ * that binds the multiscope.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public final class MultiscopeSettings {
+
+	private volatile long creationTimeoutNanos = 0;
+	private volatile boolean detectCreationCycles = false;
+	private volatile int maxLiveInstances = 0;
+	private volatile AdmissionPolicy admissionPolicy = AdmissionPolicy.FAIL;
+	private volatile long admissionTimeoutNanos = 0;
+	private volatile boolean internPrescopedValues = false;
+	private volatile int freezeAfterReads = 0;
+	private volatile List<Key<?>> preassignedProviderSlots = ImmutableList.of();
+
+	MultiscopeSettings() {
+	}
+
+	/**
+	 * @return how long a thread waits for another thread creating the same scoped key before failing,
+	 * in nanoseconds. 0 means wait forever.
+	 */
+	public long getCreationTimeoutNanos() {
+		return creationTimeoutNanos;
+	}
+
+	/**
+	 * @return if threads waiting to create a scoped object check for lock cycles while they wait
+	 */
+	public boolean isDetectCreationCycles() {
+		return detectCreationCycles;
+	}
+
+	/**
+	 * @return how many instances of the multiscope can be live (created and not closed) at the same
+	 * time. 0 means there's no limit.
+	 */
+	public int getMaxLiveInstances() {
+		return maxLiveInstances;
+	}
+
+	/**
+	 * @return what happens when a new instance is requested while the live instance limit is reached
+	 */
+	public AdmissionPolicy getAdmissionPolicy() {
+		return admissionPolicy;
+	}
+
+	/**
+	 * @return how long a new instance waits for a live instance to close with the
+	 * {@link AdmissionPolicy#BLOCK} policy, in nanoseconds. 0 means wait forever.
+	 */
+	public long getAdmissionTimeoutNanos() {
+		return admissionTimeoutNanos;
+	}
+
+	/**
+	 * @return if equal prescoped objects of bounded instances are interned
+	 */
+	public boolean isInternPrescopedValues() {
+		return internPrescopedValues;
+	}
+
+	/**
+	 * @return after how many lookups in a row without writes an instance is frozen. 0 means instances
+	 * are only frozen explicitly.
+	 */
+	public int getFreezeAfterReads() {
+		return freezeAfterReads;
+	}
+
+	/**
+	 * @return the keys whose scoped providers get the first slots of the provider cache of the
+	 * instances, in slot order
+	 */
+	public List<Key<?>> getPreassignedProviderSlots() {
+		return preassignedProviderSlots;
+	}
+
+	void setCreationTimeout(long timeout, TimeUnit unit) {
+		this.creationTimeoutNanos = unit.toNanos(timeout);
+	}
+
+	void setDetectCreationCycles(boolean detectCreationCycles) {
+		this.detectCreationCycles = detectCreationCycles;
+	}
+
+	void setLiveInstanceLimit(int maxLiveInstances, AdmissionPolicy admissionPolicy, long timeout, TimeUnit unit) {
+		this.admissionPolicy = admissionPolicy;
+		this.admissionTimeoutNanos = unit.toNanos(timeout);
+		this.maxLiveInstances = maxLiveInstances;
+	}
+
+	void setInternPrescopedValues(boolean internPrescopedValues) {
+		this.internPrescopedValues = internPrescopedValues;
+	}
+
+	void setFreezeAfterReads(int freezeAfterReads) {
+		this.freezeAfterReads = freezeAfterReads;
+	}
+
+	void setPreassignedProviderSlots(List<Key<?>> keys) {
+		this.preassignedProviderSlots = ImmutableList.copyOf(keys);
+	}
+}
@@ -21,22 +21,41 @@
 package org.protobee.guice.multiscopes;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilderSpec;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.*;
 import com.google.inject.binder.LinkedBindingBuilder;
+import com.google.inject.matcher.Matchers;
 import com.google.inject.multibindings.Multibinder;
 import com.google.inject.spi.Dependency;
 import com.google.inject.spi.HasDependencies;
 import com.google.inject.spi.Toolable;
+import com.google.inject.util.Providers;
+import com.google.inject.util.Types;
 import org.protobee.guice.multiscopes.scopes.AssistedMultiscope;
+import org.protobee.guice.multiscopes.scopes.Passivator;
 import org.protobee.guice.multiscopes.scopes.SimpleMultiscope;
+import org.protobee.guice.multiscopes.scopes.StripedMultiscope;
+import org.protobee.guice.multiscopes.scopes.ThreadMultiscope;
 import org.protobee.guice.multiscopes.util.Descoper;
+import org.protobee.guice.multiscopes.util.JavaScopeSerializer;
 
 import javax.annotation.Nullable;
+import java.io.File;
 import java.lang.annotation.Annotation;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class for binding multiscopes.<br/>
@@ -102,6 +121,45 @@ public final class Multiscopes {
 		return mbinder;
 	}
 
+	/**
+	 * Creates a new {@link MultiscopeBinder} for a {@link StripedMultiscope} with a stripe per
+	 * available processor. Threads enter the scope with the {@link ScopeInstance} annotated with the
+	 * stripe entry annotation, which puts them in a free stripe.
+	 */
+	public static MultiscopeBinder newStripedBinder(final Binder binder, final Class<? extends Annotation> scopeAnnotation, final Class<? extends Annotation> scopeBindingAnnotation, final Class<? extends Annotation> stripeEntryAnnotation) {
+		return newStripedBinder(binder, scopeAnnotation, scopeBindingAnnotation, stripeEntryAnnotation, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Same as {@link #newStripedBinder(Binder, Class, Class, Class)}, with the given number of
+	 * stripes.
+	 */
+	public static MultiscopeBinder newStripedBinder(final Binder binder, final Class<? extends Annotation> scopeAnnotation, final Class<? extends Annotation> scopeBindingAnnotation, final Class<? extends Annotation> stripeEntryAnnotation, int stripeCount) {
+		Preconditions.checkNotNull(binder, "binder");
+		Preconditions.checkNotNull(scopeAnnotation, "scopeAnnotation");
+		Preconditions.checkNotNull(scopeBindingAnnotation, "scopeBindingAnnotation");
+		Preconditions.checkNotNull(stripeEntryAnnotation, "stripeEntryAnnotation");
+		Preconditions.checkArgument(stripeCount > 0, "stripe count must be positive");
+		RealStripedMultiscopeModule striped = new RealStripedMultiscopeModule(binder, scopeAnnotation, scopeBindingAnnotation, stripeEntryAnnotation, stripeCount);
+		binder.install(striped);
+		return striped;
+	}
+
+	/**
+	 * Creates a new {@link MultiscopeBinder} for a {@link ThreadMultiscope}, where every thread is
+	 * implicitly in its own scope instance. The multiscope is also bound as a
+	 * {@link ThreadMultiscope} annotated with the scope binding annotation, for closing the instances
+	 * of terminated threads.
+	 */
+	public static MultiscopeBinder newThreadBinder(final Binder binder, final Class<? extends Annotation> scopeAnnotation, final Class<? extends Annotation> scopeBindingAnnotation) {
+		Preconditions.checkNotNull(binder, "binder");
+		Preconditions.checkNotNull(scopeAnnotation, "scopeAnnotation");
+		Preconditions.checkNotNull(scopeBindingAnnotation, "scopeBindingAnnotation");
+		RealThreadMultiscopeModule threads = new RealThreadMultiscopeModule(binder, scopeAnnotation, scopeBindingAnnotation);
+		binder.install(threads);
+		return threads;
+	}
+
 	/**
 	 * Binds the given class as a prescoped type in the given scope. This tells Guice that we can find
 	 * the given type annotated with the scope binding annotation in the given multiscope. This is
@@ -109,7 +167,7 @@ public final class Multiscopes {
 	 * where to get the given class for each specific scope instance.
 	 */
 	public static <T> void bindAsPrescoped(final Binder binder, final Class<? extends Annotation> scopeAnnotation, final Class<? extends Annotation> scopeBindingAnnotation, final Class<T> prescopedClass) {
-		bindAsPrescoped(binder, scopeAnnotation, scopeBindingAnnotation, TypeLiteral.get(prescopedClass));
+		bindAsPrescopedKey(binder, scopeAnnotation, scopeBindingAnnotation, TypeLiteral.get(prescopedClass));
 	}
 
 	/**
@@ -119,7 +177,46 @@ public final class Multiscopes {
 	 * where to get the given class for each specific scope instance.
 	 */
 	public static <T> void bindAsPrescoped(final Binder binder, final Class<? extends Annotation> scopeAnnotation, final Class<? extends Annotation> scopeBindingAnnotation, final TypeLiteral<T> prescopedType) {
+		bindAsPrescopedKey(binder, scopeAnnotation, scopeBindingAnnotation, prescopedType);
+	}
+
+	/**
+	 * Like {@link #bindAsPrescoped(Binder, Class, Class, Class)}, but returns the handle for putting
+	 * the prescoped objects in scope instances.
+	 */
+	public static <T> ScopedKey<T> bindAsPrescopedKey(final Binder binder, final Class<? extends Annotation> scopeAnnotation, final Class<? extends Annotation> scopeBindingAnnotation, final Class<T> prescopedClass) {
+		return bindAsPrescopedKey(binder, scopeAnnotation, scopeBindingAnnotation, TypeLiteral.get(prescopedClass));
+	}
+
+	/**
+	 * Like {@link #bindAsPrescoped(Binder, Class, Class, TypeLiteral)}, but returns the handle for
+	 * putting the prescoped objects in scope instances.
+	 */
+	public static <T> ScopedKey<T> bindAsPrescopedKey(final Binder binder, final Class<? extends Annotation> scopeAnnotation, final Class<? extends Annotation> scopeBindingAnnotation, final TypeLiteral<T> prescopedType) {
 		binder.bind(prescopedType).annotatedWith(scopeBindingAnnotation).toProvider(new PrescopedProvider<T>()).in(scopeAnnotation);
+		return ScopedKey.of(prescopedType, scopeBindingAnnotation);
+	}
+
+	/**
+	 * Binds {@link ListenableFuture}{@code <T>}, with the binding annotation of the given key, in the
+	 * given multiscope. The first injection of the future in a scope instance submits the creation
+	 * of the key's object to the executor, and every injection in that instance gets the same
+	 * future. The object is created in the scope instance with {@link ScopeInstance#get(Key)}, so no
+	 * thread waits on a scope lock while it's constructed, and if the key is bound in the same
+	 * multiscope the future gives the same object as injecting the key. A failed creation fails the
+	 * future, and the failed future stays in the instance.
+	 *
+	 * @return the key of the future
+	 */
+	@SuppressWarnings("unchecked") public static <T> Key<ListenableFuture<T>> bindAsync(final Binder binder, final Class<? extends Annotation> scopeAnnotation, final Class<? extends Annotation> scopeBindingAnnotation, final Key<T> key, final Key<? extends Executor> executorKey) {
+		Preconditions.checkNotNull(binder, "binder");
+		Preconditions.checkNotNull(scopeAnnotation, "scopeAnnotation");
+		Preconditions.checkNotNull(scopeBindingAnnotation, "scopeBindingAnnotation");
+		Preconditions.checkNotNull(key, "key");
+		Preconditions.checkNotNull(executorKey, "executorKey");
+		Key<ListenableFuture<T>> futureKey = (Key<ListenableFuture<T>>) key.ofType(Types.newParameterizedType(ListenableFuture.class, key.getTypeLiteral().getType()));
+		binder.bind(futureKey).toProvider(new AsyncScopedProvider<T>(key, Key.get(ScopeInstance.class, scopeBindingAnnotation), executorKey)).in(scopeAnnotation);
+		return futureKey;
 	}
 
 	static class RealMultiscopeModule implements MultiscopeBinder, Module {
@@ -157,6 +254,9 @@ public final class Multiscopes {
 
 			Multibinder<Multiscope> scopes = Multibinder.newSetBinder(binder, Multiscope.class);
 			scopes.addBinding().to(Key.get(Multiscope.class, scopeBindingAnnotation));
+
+			// set up for scope settings
+			Multibinder.newSetBinder(binder, ScopeSetting.class, scopeBindingAnnotation);
 		}
 
 		@Override public LinkedBindingBuilder<Map<Key<?>, Object>> bindScopeStorageMap() {
@@ -164,6 +264,90 @@ public final class Multiscopes {
 			}, scopeBindingAnnotation));
 		}
 
+		@Override public MultiscopeBinder withCreationTimeout(final long timeout, final TimeUnit unit) {
+			Preconditions.checkArgument(timeout >= 0, "timeout must not be negative");
+			Preconditions.checkNotNull(unit, "unit");
+			return addSetting(new ScopeSetting() {
+				@Override void applyTo(MultiscopeSettings settings) {
+					settings.setCreationTimeout(timeout, unit);
+				}
+			});
+		}
+
+		@Override public MultiscopeBinder detectCreationCycles() {
+			return addSetting(new ScopeSetting() {
+				@Override void applyTo(MultiscopeSettings settings) {
+					settings.setDetectCreationCycles(true);
+				}
+			});
+		}
+
+		@Override public MultiscopeBinder limitLiveInstances(int maxLiveInstances, AdmissionPolicy policy) {
+			return limitLiveInstances(maxLiveInstances, policy, 0, TimeUnit.NANOSECONDS);
+		}
+
+		@Override public MultiscopeBinder limitLiveInstances(final int maxLiveInstances, final AdmissionPolicy policy, final long timeout, final TimeUnit unit) {
+			Preconditions.checkArgument(maxLiveInstances > 0, "maxLiveInstances must be positive");
+			Preconditions.checkNotNull(policy, "policy");
+			Preconditions.checkArgument(timeout >= 0, "timeout must not be negative");
+			Preconditions.checkNotNull(unit, "unit");
+			Preconditions.checkState(newScopeBindingAnnotation != null, "%s has no new scope instances to limit", scopeBindingAnnotation);
+			return addSetting(new ScopeSetting() {
+				@Override void applyTo(MultiscopeSettings settings) {
+					settings.setLiveInstanceLimit(maxLiveInstances, policy, timeout, unit);
+				}
+			});
+		}
+
+		@Override public MultiscopeBinder enableScopeCaching(String cacheSpec) {
+			Preconditions.checkNotNull(cacheSpec, "cacheSpec");
+			Key<ScopeCachingInterceptor.MethodCache> cacheKey = Key.get(ScopeCachingInterceptor.MethodCache.class, scopeBindingAnnotation);
+			binder.bind(cacheKey).toProvider(new ScopeCachingInterceptor.MethodCacheProvider(CacheBuilderSpec.parse(cacheSpec))).in(scopeAnnotation);
+			ScopeCachingInterceptor interceptor = new ScopeCachingInterceptor(multiscope, cacheKey);
+			binder.requestInjection(interceptor);
+			binder.bindInterceptor(Matchers.any(), new ScopeCachingInterceptor.ScopeCachedMatcher(scopeBindingAnnotation), interceptor);
+			return this;
+		}
+
+		@Override public MultiscopeBinder passivateIdleInstances(long idleTime, TimeUnit unit, File spillDirectory, Key<?>... passivatedKeys) {
+			return passivateIdleInstances(idleTime, unit, spillDirectory, new JavaScopeSerializer(passivatedKeys));
+		}
+
+		@Override public MultiscopeBinder passivateIdleInstances(long idleTime, TimeUnit unit, File spillDirectory, ScopeSerializer serializer) {
+			Preconditions.checkNotNull(unit, "unit");
+			binder.bind(ScopePassivation.class).annotatedWith(scopeBindingAnnotation).toInstance(new Passivator(multiscope, idleTime, unit, spillDirectory, serializer));
+			return this;
+		}
+
+		@Override public MultiscopeBinder freezeAfterReads(final int reads) {
+			Preconditions.checkArgument(reads > 0, "reads must be positive");
+			return addSetting(new ScopeSetting() {
+				@Override void applyTo(MultiscopeSettings settings) {
+					settings.setFreezeAfterReads(reads);
+				}
+			});
+		}
+
+		@SuppressWarnings("unchecked") @Override public <K> MultiscopeBinder bindKeyedInstances(Class<K> keyType, String cacheSpec) {
+			Preconditions.checkNotNull(keyType, "keyType");
+			Preconditions.checkNotNull(cacheSpec, "cacheSpec");
+			Preconditions.checkState(newScopeBindingAnnotation != null, "%s has no new scope instances to key", scopeBindingAnnotation);
+			Key<KeyedScopeInstances<K>> key = (Key<KeyedScopeInstances<K>>) Key.get(Types.newParameterizedType(KeyedScopeInstances.class, keyType), scopeBindingAnnotation);
+			binder.bind(key).toProvider(new KeyedScopeInstancesProvider<K>(CacheBuilderSpec.parse(cacheSpec), Key.get(ScopeInstance.class, newScopeBindingAnnotation))).in(Singleton.class);
+			return this;
+		}
+
+		@Override public MultiscopeBinder preassignProviderSlots(Key<?>... keys) {
+			Preconditions.checkArgument(ImmutableSet.copyOf(keys).size() == keys.length, "Keys %s are not distinct", Arrays.toString(keys));
+			multiscope.getSettings().setPreassignedProviderSlots(Arrays.asList(keys));
+			return this;
+		}
+
+		protected MultiscopeBinder addSetting(ScopeSetting setting) {
+			Multibinder.newSetBinder(binder, ScopeSetting.class, scopeBindingAnnotation).addBinding().toInstance(setting);
+			return this;
+		}
+
 		@Override public boolean equals(Object o) {
 			return o instanceof RealMultiscopeModule && ((RealMultiscopeModule) o).scopeAnnotation.equals(scopeAnnotation);
 		}
@@ -212,6 +396,50 @@ public final class Multiscopes {
 		}
 	}
 
+	static class RealStripedMultiscopeModule extends RealMultiscopeModule {
+		private final Class<? extends Annotation> stripeEntryAnnotation;
+		private final int stripeCount;
+
+		RealStripedMultiscopeModule(Binder binder, Class<? extends Annotation> scopeAnnotation, Class<? extends Annotation> scopeBindingAnnotation, Class<? extends Annotation> stripeEntryAnnotation, int stripeCount) {
+			super(binder, scopeAnnotation, scopeBindingAnnotation, null);
+			this.stripeEntryAnnotation = stripeEntryAnnotation;
+			this.stripeCount = stripeCount;
+		}
+
+		@Override protected Multiscope createMultiscope() {
+			return new StripedMultiscope(scopeBindingAnnotation, stripeCount);
+		}
+
+		@Override public void configure(Binder binder) {
+			super.configure(binder);
+			binder.bind(ScopeInstance.class).annotatedWith(stripeEntryAnnotation).toInstance(((StripedMultiscope) multiscope).getStripeEntry());
+		}
+
+		@Override public LinkedBindingBuilder<Map<Key<?>, Object>> bindScopeStorageMap() {
+			throw new UnsupportedOperationException("Striped multiscopes create their stripes with the default scope map");
+		}
+	}
+
+	static class RealThreadMultiscopeModule extends RealMultiscopeModule {
+
+		RealThreadMultiscopeModule(Binder binder, Class<? extends Annotation> scopeAnnotation, Class<? extends Annotation> scopeBindingAnnotation) {
+			super(binder, scopeAnnotation, scopeBindingAnnotation, null);
+		}
+
+		@Override protected Multiscope createMultiscope() {
+			return new ThreadMultiscope(scopeBindingAnnotation);
+		}
+
+		@Override public void configure(Binder binder) {
+			super.configure(binder);
+			binder.bind(ThreadMultiscope.class).annotatedWith(scopeBindingAnnotation).toProvider(Providers.of((ThreadMultiscope) multiscope));
+		}
+
+		@Override public LinkedBindingBuilder<Map<Key<?>, Object>> bindScopeStorageMap() {
+			throw new UnsupportedOperationException("Thread multiscopes create their instances with the default scope map");
+		}
+	}
+
 	static class RealBoundedMultiscopeModule extends RealMultiscopeModule implements Module, BoundedMultiscopeBinder {
 
 		RealBoundedMultiscopeModule(Binder binder, Class<? extends Annotation> scopeAnnotation, Class<? extends Annotation> scopeBindingAnnotation) {
@@ -222,25 +450,31 @@ public final class Multiscopes {
 			return new AssistedMultiscope(scopeBindingAnnotation);
 		}
 
+		@Override public void configure(Binder binder) {
+			super.configure(binder);
+			binder.bind(PrescopeIndex.class).annotatedWith(scopeBindingAnnotation).toInstance(new PrescopeIndex(scopeBindingAnnotation));
+			Multibinder.newSetBinder(binder, InstanceKeys.class, scopeBindingAnnotation);
+		}
+
 		@Override public BoundedMultiscopeBinder addInstance(final Class<? extends Annotation> instanceAnnotation) {
 			binder.bind(ScopeInstance.class).annotatedWith(instanceAnnotation).toProvider(new PrescopingSingletonInstanceProvider(scopeBindingAnnotation, instanceAnnotation));
 
 			Multibinder<ScopeInstance> instances = Multibinder.newSetBinder(binder, ScopeInstance.class, scopeBindingAnnotation);
 			instances.addBinding().to(Key.get(ScopeInstance.class, instanceAnnotation));
-
-			// set up for prescoped keys
-			Multibinder.newSetBinder(binder, KeyWrapper.class, instanceAnnotation);
 			return this;
 		}
 
 		@Override public InstancePrescoper prescopeInstance(Class<? extends Annotation> instanceAnnotation) {
-			final Multibinder<KeyWrapper> prescopeedKeys = Multibinder.newSetBinder(binder, KeyWrapper.class, instanceAnnotation);
+			// one element for all the keys of this call, instead of a binding per key
+			final InstanceKeys instanceKeys = new InstanceKeys(instanceAnnotation);
+			Multibinder.newSetBinder(binder, InstanceKeys.class, scopeBindingAnnotation).addBinding().toInstance(instanceKeys);
 
 			InstancePrescoper instance = new InstancePrescoper() {
 				@Override public <T> InstancePrescoper addInstanceObject(Key<T> key, PrescopeType type) {
 					Preconditions.checkNotNull(key, "key");
 					Preconditions.checkNotNull(type, "type");
-					prescopeedKeys.addBinding().toInstance(new KeyWrapper(key, type));
+					Preconditions.checkArgument(type != PrescopeType.MAPPED || key.getTypeLiteral().getRawType() == MappedRecords.class, "%s has to be a MappedRecords key to be mapped", key);
+					instanceKeys.keys.add(new KeyWrapper(key, type));
 					return this;
 				}
 
@@ -252,6 +486,15 @@ public final class Multiscopes {
 			return instance;
 		}
 
+		@Override public BoundedMultiscopeBinder internPrescopedValues() {
+			addSetting(new ScopeSetting() {
+				@Override void applyTo(MultiscopeSettings settings) {
+					settings.setInternPrescopedValues(true);
+				}
+			});
+			return this;
+		}
+
 		@Override public boolean equals(Object o) {
 			return o instanceof RealBoundedMultiscopeModule && ((RealBoundedMultiscopeModule) o).scopeAnnotation.equals(scopeAnnotation);
 		}
@@ -260,13 +503,106 @@ public final class Multiscopes {
 			return scopeAnnotation.hashCode();
 		}
 
-		static class BindingAndType {
-			final Binding<?> binding;
-			final PrescopeType type;
+		/**
+		 * The keys prescoped by one {@link #prescopeInstance(Class)} call.
+		 */
+		static class InstanceKeys {
+			final Class<? extends Annotation> instanceAnnotation;
+			final List<KeyWrapper> keys = Lists.newArrayList();
+
+			InstanceKeys(Class<? extends Annotation> instanceAnnotation) {
+				this.instanceAnnotation = instanceAnnotation;
+			}
+		}
+
+		/**
+		 * What the instance providers of a bounded multiscope share: the multiscope, the scope map
+		 * binding, the prescoped keys of every instance and the scoped keys they're stored under. Built
+		 * once, by the first instance provider that's initialized.
+		 */
+		static class PrescopeIndex {
+			static final TypeLiteral<Set<InstanceKeys>> INSTANCE_KEYS_TYPE = new TypeLiteral<Set<InstanceKeys>>() {
+			};
+
+			final Class<? extends Annotation> scopeBindingAnnotation;
+			Multiscope multiscope;
+			Binding<Map<Key<?>, Object>> scopeMapBinding;
+			ListMultimap<Class<? extends Annotation>, KeyWrapper> keysByInstance;
+			Map<TypeLiteral<?>, Key<?>> scopedKeys;
+			boolean initialized = false;
+			// created on the first instance, as the settings are applied after the index is initialized
+			volatile Interner<Object> interner = null;
+
+			PrescopeIndex(Class<? extends Annotation> scopeBindingAnnotation) {
+				this.scopeBindingAnnotation = scopeBindingAnnotation;
+			}
+
+			synchronized void initialize(Injector injector) {
+				if (initialized) {
+					return;
+				}
+				multiscope = injector.getInstance(Key.get(Multiscope.class, scopeBindingAnnotation));
+				scopeMapBinding = injector.getExistingBinding(Key.get(new TypeLiteral<Map<Key<?>, Object>>() {
+				}));
+				keysByInstance = ArrayListMultimap.create();
+				scopedKeys = Maps.newHashMap();
+				for (InstanceKeys instanceKeys : injector.getInstance(Key.get(INSTANCE_KEYS_TYPE, scopeBindingAnnotation))) {
+					keysByInstance.putAll(instanceKeys.instanceAnnotation, instanceKeys.keys);
+					for (KeyWrapper key : instanceKeys.keys) {
+						TypeLiteral<?> type = key.getKey().getTypeLiteral();
+						if (!scopedKeys.containsKey(type)) {
+							scopedKeys.put(type, Key.get(type, scopeBindingAnnotation));
+						}
+					}
+				}
+				initialized = true;
+			}
+
+			/**
+			 * @return the interner of the prescoped objects, or null if they're not interned
+			 */
+			@Nullable Interner<Object> interner() {
+				Interner<Object> interner = this.interner;
+				if (interner == null && multiscope.getSettings().isInternPrescopedValues()) {
+					synchronized (this) {
+						interner = this.interner;
+						if (interner == null) {
+							interner = Interners.newWeakInterner();
+							this.interner = interner;
+						}
+					}
+				}
+				return interner;
+			}
+
+			Object intern(Interner<Object> interner, Object value) {
+				if (value == null) {
+					return null;
+				}
+				Object interned = interner.intern(value);
+				if (interned != value) {
+					multiscope.getMetrics().getInternedObjects().increment();
+				}
+				return interned;
+			}
+		}
+
+		/**
+		 * Interns the objects of a {@link PrescopeType#LAZY} key when they are provided.
+		 */
+		static class InterningProvider implements Provider<Object> {
+			final PrescopeIndex index;
+			final Interner<Object> interner;
+			final Provider<?> provider;
+
+			InterningProvider(PrescopeIndex index, Interner<Object> interner, Provider<?> provider) {
+				this.index = index;
+				this.interner = interner;
+				this.provider = provider;
+			}
 
-			public BindingAndType(Binding<?> binding, PrescopeType type) {
-				this.binding = binding;
-				this.type = type;
+			@Override public Object get() {
+				return index.intern(interner, provider.get());
 			}
 		}
 
@@ -276,50 +612,43 @@ public final class Multiscopes {
 			final Class<? extends Annotation> scopeBindingAnnotation;
 			final Object instanceLock = new Object();
 			volatile ScopeInstance instance = null;
-			Multiscope multiscope;
-			Binding<Map<Key<?>, Object>> scopeMapBuilder = null;
-			ImmutableSet<BindingAndType> bindings;
+			PrescopeIndex index;
+			Key<?>[] scopedKeys;
+			Provider<?>[] providers;
+			PrescopeType[] types;
 			ImmutableSet<Dependency<?>> dependencies;
-			boolean initialized = false;
 
 			PrescopingSingletonInstanceProvider(Class<? extends Annotation> scopeBindingAnnotation, Class<? extends Annotation> scopeInstanceAnnotation) {
 				this.scopeBindingAnnotation = scopeBindingAnnotation;
 				this.scopeInstanceAnnotation = scopeInstanceAnnotation;
+				this.dependencies = ImmutableSet.<Dependency<?>>of(Dependency.get(Key.get(Injector.class)), Dependency.get(Key.get(PrescopeIndex.class, scopeBindingAnnotation)), Dependency.get(Key.get(PrescopeIndex.INSTANCE_KEYS_TYPE, scopeBindingAnnotation)), Dependency.get(Key.get(Multiscope.class, scopeBindingAnnotation)));
 			}
 
 			@Inject @Toolable void initialize(Injector injector) {
-				initialized = true;
-
-				multiscope = injector.getInstance(Key.get(Multiscope.class, scopeBindingAnnotation));
-				TypeLiteral<Set<KeyWrapper>> keyType = new TypeLiteral<Set<KeyWrapper>>() {
-				};
-				Set<BindingAndType> bindings = Sets.newHashSet();
-
-				Set<Dependency<?>> dependencies = Sets.newHashSet();
-				Set<KeyWrapper> prescopedKeys = injector.getInstance(Key.get(keyType, scopeInstanceAnnotation));
-				for (KeyWrapper key : prescopedKeys) {
-					bindings.add(new BindingAndType(injector.getBinding(key.getKey()), key.getType()));
+				index = injector.getInstance(Key.get(PrescopeIndex.class, scopeBindingAnnotation));
+				index.initialize(injector);
+
+				List<KeyWrapper> prescopedKeys = index.keysByInstance.get(scopeInstanceAnnotation);
+				int size = prescopedKeys.size();
+				scopedKeys = new Key<?>[size];
+				providers = new Provider<?>[size];
+				types = new PrescopeType[size];
+				ImmutableSet.Builder<Dependency<?>> dependencies = ImmutableSet.builder();
+				for (int i = 0; i < size; i++) {
+					KeyWrapper key = prescopedKeys.get(i);
+					scopedKeys[i] = index.scopedKeys.get(key.getKey().getTypeLiteral());
+					providers[i] = injector.getProvider(key.getKey());
+					types[i] = key.getType();
 					dependencies.add(Dependency.get(key.getKey()));
 				}
-				this.dependencies = ImmutableSet.copyOf(dependencies);
-				this.bindings = ImmutableSet.copyOf(bindings);
-
-				scopeMapBuilder = injector.getExistingBinding(Key.get(new TypeLiteral<Map<Key<?>, Object>>() {
-				}));
+				if (index.scopeMapBinding != null) {
+					dependencies.add(Dependency.get(index.scopeMapBinding.getKey()));
+				}
+				this.dependencies = dependencies.build();
 			}
 
 			@Override public Set<Dependency<?>> getDependencies() {
-				if (!initialized) {
-					TypeLiteral<Set<KeyWrapper>> keyType = new TypeLiteral<Set<KeyWrapper>>() {
-					};
-					return ImmutableSet.<Dependency<?>>of(Dependency.get(Key.get(Injector.class)), Dependency.get(Key.get(keyType, scopeInstanceAnnotation)), Dependency.get(Key.get(Multiscope.class, scopeBindingAnnotation)));
-				}
-				ImmutableSet.Builder<Dependency<?>> deps = ImmutableSet.builder();
-				deps.addAll(dependencies);
-				if (scopeMapBuilder != null) {
-					deps.add(Dependency.get(scopeMapBuilder.getKey()));
-				}
-				return deps.build();
+				return dependencies;
 			}
 
 			@Override public ScopeInstance get() {
@@ -332,32 +661,36 @@ public final class Multiscopes {
 					}
 
 					Map<Key<?>, Object> scopeMap;
-					if (scopeMapBuilder != null) {
-						scopeMap = scopeMapBuilder.getProvider().get();
+					if (index.scopeMapBinding != null) {
+						scopeMap = index.scopeMapBinding.getProvider().get();
 					} else {
 						scopeMap = MultiscopeUtils.createDefaultScopeMap();
 					}
-					for (BindingAndType prescoped : bindings) {
-						Binding<?> binding = prescoped.binding;
-						Key<?> key = Key.get(binding.getKey().getTypeLiteral(), scopeBindingAnnotation);
-						switch (prescoped.type) {
+					Interner<Object> interner = index.interner();
+					for (int i = 0; i < scopedKeys.length; i++) {
+						switch (types[i]) {
 							case EAGER:
-								scopeMap.put(key, binding.getProvider().get());
+								Object value = providers[i].get();
+								scopeMap.put(scopedKeys[i], interner == null ? value : index.intern(interner, value));
+								break;
+							case MAPPED:
+								scopeMap.put(scopedKeys[i], providers[i].get());
 								break;
 							case LAZY:
-								scopeMap.put(key, new AssistedMultiscope.LazyScopedObject(binding.getProvider()));
+								Provider<?> provider = interner == null ? providers[i] : new InterningProvider(index, interner, providers[i]);
+								scopeMap.put(scopedKeys[i], new AssistedMultiscope.LazyScopedObject(provider));
 								break;
 							default:
 								throw new ProvisionException("Prescope type cannot be null");
 						}
 					}
-					instance = multiscope.createScopeInstance(scopeMap);
+					instance = index.multiscope.createScopeInstance(scopeMap);
 					return instance;
 				}
 			}
 
 			@Override public String toString() {
-				return multiscope.toString() + "-NewInstanceProvider";
+				return scopeInstanceAnnotation.getSimpleName() + "-NewInstanceProvider";
 			}
 		}
 	}
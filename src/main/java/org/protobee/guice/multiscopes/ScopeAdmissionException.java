@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes;
+
+/**
+ * Thrown when a new scope instance can't be created because its multiscope has as many live
+ * instances as allowed by {@link MultiscopeBinder#limitLiveInstances(int, AdmissionPolicy)}. Guice
+ * reports it as the cause of a {@link com.google.inject.ProvisionException}.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public class ScopeAdmissionException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	private final int maxLiveInstances;
+
+	public ScopeAdmissionException(String message, int maxLiveInstances) {
+		super(message);
+		this.maxLiveInstances = maxLiveInstances;
+	}
+
+	/**
+	 * @return the live instance limit that was reached
+	 */
+	public int getMaxLiveInstances() {
+		return maxLiveInstances;
+	}
+}
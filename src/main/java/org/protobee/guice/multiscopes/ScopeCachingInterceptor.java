@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheBuilderSpec;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.matcher.AbstractMatcher;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.protobee.guice.multiscopes.util.StripedCounter;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * Intercepts the {@link ScopeCached} methods of one multiscope. The cache of each scope instance is
+ * a scoped object of the multiscope, so getting it is a scoped injection, and it's created on the
+ * first cached call in the instance.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+class ScopeCachingInterceptor implements MethodInterceptor {
+
+	private final Multiscope multiscope;
+	private final Key<MethodCache> cacheKey;
+	private final StripedCounter hits;
+	private final StripedCounter misses;
+	private Provider<MethodCache> caches;
+
+	ScopeCachingInterceptor(Multiscope multiscope, Key<MethodCache> cacheKey) {
+		this.multiscope = multiscope;
+		this.cacheKey = cacheKey;
+		this.hits = multiscope.getMetrics().getCacheHits();
+		this.misses = multiscope.getMetrics().getCacheMisses();
+	}
+
+	@Inject void init(Injector inj) {
+		caches = inj.getProvider(cacheKey);
+	}
+
+	/**
+	 * Results are computed outside of the cache, so two threads that miss at the same time both
+	 * call the method, and the last result is kept.
+	 */
+	@Override public Object invoke(MethodInvocation invocation) throws Throwable {
+		if (!multiscope.isInScope()) {
+			return invocation.proceed();
+		}
+		Cache<MethodCall, Object> cache = caches.get().cache;
+		MethodCall call = new MethodCall(invocation.getThis(), invocation.getMethod(), invocation.getArguments());
+		Object value = cache.getIfPresent(call);
+		if (value != null) {
+			hits.increment();
+			return value == NullResult.INSTANCE ? null : value;
+		}
+		misses.increment();
+		value = invocation.proceed();
+		cache.put(call, value == null ? NullResult.INSTANCE : value);
+		return value;
+	}
+
+	/**
+	 * The method results of one scope instance.
+	 */
+	static class MethodCache {
+		final Cache<MethodCall, Object> cache;
+
+		@SuppressWarnings("unchecked") MethodCache(CacheBuilderSpec spec) {
+			this.cache = ((CacheBuilder<MethodCall, Object>) (CacheBuilder<?, ?>) CacheBuilder.from(spec)).build();
+		}
+	}
+
+	static class MethodCacheProvider implements Provider<MethodCache> {
+		private final CacheBuilderSpec spec;
+
+		MethodCacheProvider(CacheBuilderSpec spec) {
+			this.spec = spec;
+		}
+
+		@Override public MethodCache get() {
+			return new MethodCache(spec);
+		}
+	}
+
+	/**
+	 * Matches the {@link ScopeCached} methods of a multiscope.
+	 */
+	static class ScopeCachedMatcher extends AbstractMatcher<Method> {
+		private final Class<? extends Annotation> scopeBindingAnnotation;
+
+		ScopeCachedMatcher(Class<? extends Annotation> scopeBindingAnnotation) {
+			this.scopeBindingAnnotation = scopeBindingAnnotation;
+		}
+
+		@Override public boolean matches(Method method) {
+			ScopeCached cached = method.getAnnotation(ScopeCached.class);
+			return cached != null && cached.value() == scopeBindingAnnotation;
+		}
+
+		@Override public String toString() {
+			return "@ScopeCached(" + scopeBindingAnnotation.getSimpleName() + ")";
+		}
+	}
+
+	private static final class MethodCall {
+		private final Object target;
+		private final Method method;
+		private final Object[] arguments;
+		private final int hash;
+
+		MethodCall(Object target, Method method, Object[] arguments) {
+			this.target = target;
+			this.method = method;
+			this.arguments = arguments.clone();
+			this.hash = System.identityHashCode(target) * 31 + Objects.hashCode(method, Arrays.deepHashCode(this.arguments));
+		}
+
+		@Override public int hashCode() {
+			return hash;
+		}
+
+		@Override public boolean equals(Object o) {
+			if (!(o instanceof MethodCall)) {
+				return false;
+			}
+			MethodCall other = (MethodCall) o;
+			return target == other.target && method.equals(other.method) && Arrays.deepEquals(arguments, other.arguments);
+		}
+	}
+
+	private static enum NullResult {
+		INSTANCE
+	}
+}
@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * Thrown when a thread can't create a scoped object because other threads are creating scoped
+ * objects it needs, either because the creation timeout from
+ * {@link MultiscopeBinder#withCreationTimeout(long, java.util.concurrent.TimeUnit)} passed or
+ * because a lock cycle was found (see {@link MultiscopeBinder#detectCreationCycles()}). The message
+ * and {@link #getWaitChain()} describe the whole wait-for chain, starting with the failing thread.
+ * Like other exceptions from scoped providers, Guice reports it as the cause of a
+ * {@link com.google.inject.ProvisionException}.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public class ScopeDeadlockException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	private final ImmutableList<String> waitChain;
+
+	public ScopeDeadlockException(String message, List<String> waitChain) {
+		super(message);
+		this.waitChain = ImmutableList.copyOf(waitChain);
+	}
+
+	/**
+	 * @return each link of the wait-for chain, as '(thread, scope instance, key)' descriptions
+	 */
+	public List<String> getWaitChain() {
+		return waitChain;
+	}
+}
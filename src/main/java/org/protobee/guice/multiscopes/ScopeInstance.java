@@ -20,16 +20,19 @@
  ******************************************************************************/
 package org.protobee.guice.multiscopes;
 
+import com.google.inject.ConfigurationException;
 import com.google.inject.Key;
+import com.google.inject.ProvisionException;
 
 import javax.annotation.Nullable;
 
 /**
- * An instance of a scope
+ * An instance of a scope. As a {@link ScopedLookup}, it probes the storage of this instance, whether
+ * or not the calling thread is in it.
  *
  * @author Daniel Murphy (daniel@dmurph.com)
  */
-public interface ScopeInstance {
+public interface ScopeInstance extends ScopedLookup {
 
 	/**
 	 * Enters the scope of this object for the calling thread. All injections of objects that are
@@ -38,7 +41,8 @@ public interface ScopeInstance {
 	 * A call to {@link #enterScope()} should always be in a try-finally block, where
 	 * {@link #exitScope()} is called in the finally block.
 	 *
-	 * @throws IllegalStateException if we are already in the scope described by this object
+	 * @throws IllegalStateException if we are already in the scope described by this object, or if
+	 *                               this instance is closed or closing when drained
 	 */
 	void enterScope() throws IllegalStateException;
 
@@ -64,8 +68,106 @@ public interface ScopeInstance {
 	 */
 	void putInScope(Key<?> key, @Nullable Object object) throws IllegalArgumentException;
 
+	/**
+	 * Puts the object in this scope with a handle that was checked when it was created. The type of
+	 * the object is checked by the compiler instead of on every call; an object that gets past it
+	 * with an unchecked cast fails with a {@link ClassCastException} where it's injected.
+	 *
+	 * @throws NullPointerException if the key is null
+	 */
+	<T> void putInScope(ScopedKey<T> key, @Nullable T object);
+
+	/**
+	 * Puts all the given values in this scope at once, replacing objects already stored for their
+	 * keys. Doesn't allocate beyond what the storage map needs for new entries.
+	 *
+	 * @throws NullPointerException if the values are null
+	 */
+	void seed(ScopedValues values);
+
+	/**
+	 * Gets the object for the key from this scope instance, creating it if needed, without entering
+	 * the scope. The calling thread can be in another instance of the scope (or in none), and stays
+	 * there. Objects already in this instance are read straight from its storage; other objects are
+	 * injected as if the thread was in this instance, so they're created with the same guarantees as
+	 * scoped injection (one object per instance) and their dependencies in this scope come from this
+	 * instance.
+	 *
+	 * @throws ProvisionException    if creating the object fails
+	 * @throws ConfigurationException if the key can't be injected
+	 * @throws NullPointerException  if the key is null
+	 */
+	@Nullable <T> T get(Key<T> key) throws ProvisionException, ConfigurationException;
+
+	/**
+	 * Same as {@link #get(Key)}, for the key of the given type with no binding annotation.
+	 */
+	@Nullable <T> T get(Class<T> type) throws ProvisionException, ConfigurationException;
+
+	/**
+	 * Closes this instance: its objects are dropped, the ones that are {@link java.io.Closeable} are
+	 * closed (failures are logged), and it can't be entered or have objects put in it anymore.
+	 * Threads that are still in it can't get scoped objects from it. Closing twice does nothing.
+	 */
+	void close();
+
+	/**
+	 * @return if {@link #close()} was called
+	 */
+	boolean isClosed();
+
+	/**
+	 * Closes this instance once the threads that are in it have exited it. From now on the instance
+	 * can't be entered, and the last thread to exit closes it, so instances can be retired while
+	 * threads are using them. If no thread is in the instance it's closed right away.
+	 */
+	void closeWhenDrained();
+
+	/**
+	 * @return the number of threads that are in this instance right now
+	 */
+	int getActiveThreads();
+
 	/**
 	 * @return the unique id of this instance in it's respective scope
 	 */
 	int getInstanceId();
+
+	/**
+	 * Freezes the objects of this instance into an immutable copy, which lookups read without
+	 * locking. Meant for instances that are read much more than written, like bounded instances after
+	 * warmup. Objects that are created or put in the instance afterwards make a new copy, so the
+	 * instance behaves the same, but each late write costs a copy of the whole instance.
+	 */
+	void freeze();
+
+	/**
+	 * @return if the instance was frozen, with {@link #freeze()} or because it was read often enough
+	 * without writes (see {@link MultiscopeBinder#freezeAfterReads(int)})
+	 */
+	boolean isFrozen();
+
+	/**
+	 * Creates a new instance of the same multiscope layered on this one. Scoped objects that aren't
+	 * in the new layer are looked up in this instance (and its own parent layers), so objects shared
+	 * by many layers exist once. An object is created in the nearest layer that has it prescoped, or
+	 * in the layer that's entered if none does; objects put in a layer hide the ones of its parents.
+	 * Closing this instance doesn't close its layers, which then create their own objects.
+	 * <br/><br/>
+	 * An object is only shared if this instance has it before the layers ask for it: the first layer
+	 * to inject an object this instance doesn't have creates its own copy, and so does every other
+	 * layer. Create the shared objects here first, with {@link #get(Key)} or by putting them in
+	 * scope, before the layers are used.
+	 * <br/><br/>
+	 * While a layer is live (not closed) this instance isn't evicted by the live instance limit or
+	 * passivated, as the layer reads from it without entering it.
+	 *
+	 * @throws IllegalStateException if this instance is closed
+	 */
+	ScopeInstance newLayer() throws IllegalStateException;
+
+	/**
+	 * @return the instance this instance was layered on with {@link #newLayer()}, or null
+	 */
+	@Nullable ScopeInstance getParentLayer();
 }
@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes;
+
+/**
+ * Passivates idle scope instances of a multiscope, bound annotated with the scope binding
+ * annotation by
+ * {@link MultiscopeBinder#passivateIdleInstances(long, java.util.concurrent.TimeUnit, java.io.File, ScopeSerializer)}.
+ * Passivating an instance writes the objects its {@link ScopeSerializer} accepts to a memory-mapped
+ * spill file and drops them from the heap. They are read back one key at a time, when they are next looked up in the
+ * instance.
+ * <br/><br/>
+ * A restored object is a copy, so only objects that aren't referenced from outside of their scope
+ * instance should be passivated, which the {@link ScopeSerializer} decides. Threads can't enter an
+ * instance while it's being passivated, but {@link ScopeInstance#get(com.google.inject.Key)} and
+ * {@link ScopedLookup#tryGet(com.google.inject.Key)} from threads that aren't in it don't wait, so
+ * they can return an object that's passivated right after.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public interface ScopePassivation {
+
+	/**
+	 * Passivates every instance that no thread is in and that wasn't exited for the idle time. Meant
+	 * to be called periodically, for example from a
+	 * {@link java.util.concurrent.ScheduledExecutorService}.
+	 *
+	 * @return the number of instances passivated
+	 */
+	int passivateIdle();
+
+	/**
+	 * Passivates the instance right away, unless a thread is in it. Threads that enter the instance
+	 * while it's being passivated wait until it's done.
+	 *
+	 * @return the number of objects written to the spill file
+	 * @throws IllegalArgumentException if the instance isn't of this multiscope
+	 */
+	int passivate(ScopeInstance instance);
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+
+import java.lang.annotation.Annotation;
+
+/**
+ * A typed handle for a key that's put in scope instances, see
+ * {@link ScopeInstance#putInScope(ScopedKey, Object)} and {@link ScopedValues}. The compiler checks
+ * the type of the values put with the handle, so putting values with it skips the per-call check of
+ * {@link ScopeInstance#putInScope(Key, Object)}. Handles for prescoped types are returned by
+ * {@link Multiscopes#bindAsPrescopedKey(com.google.inject.Binder, Class, Class, Class)}.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public final class ScopedKey<T> {
+
+	private final Key<T> key;
+
+	private ScopedKey(Key<T> key) {
+		Preconditions.checkNotNull(key, "key");
+		this.key = key;
+	}
+
+	public static <T> ScopedKey<T> of(Key<T> key) {
+		return new ScopedKey<T>(key);
+	}
+
+	public static <T> ScopedKey<T> of(Class<T> type) {
+		return new ScopedKey<T>(Key.get(type));
+	}
+
+	public static <T> ScopedKey<T> of(TypeLiteral<T> type, Class<? extends Annotation> bindingAnnotation) {
+		return new ScopedKey<T>(Key.get(type, bindingAnnotation));
+	}
+
+	public Key<T> getKey() {
+		return key;
+	}
+
+	@Override public boolean equals(Object obj) {
+		return obj instanceof ScopedKey && key.equals(((ScopedKey<?>) obj).key);
+	}
+
+	@Override public int hashCode() {
+		return key.hashCode();
+	}
+
+	@Override public String toString() {
+		return "ScopedKey[" + key + "]";
+	}
+}
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes;
+
+import com.google.inject.Key;
+
+import javax.annotation.Nullable;
+
+/**
+ * Probes the storage of a scope without creating objects or throwing
+ * {@link com.google.inject.OutOfScopeException}s. Meant for code that only wants to know whether an
+ * object is available, possibly in a hot loop, so these methods neither throw for missing objects
+ * nor allocate.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public interface ScopedLookup {
+
+	/**
+	 * Returns the object already stored in the scope for the key. Returns null if we're not in the
+	 * scope, if the object hasn't been created yet (this includes lazily prescoped objects that
+	 * haven't been requested) or if the stored object is null.
+	 *
+	 * @throws NullPointerException if the key is null
+	 */
+	@Nullable <T> T tryGet(Key<T> key);
+
+	/**
+	 * true if an object (which can be null) has already been created or put in the scope for the key.
+	 * This never creates the object.
+	 *
+	 * @throws NullPointerException if the key is null
+	 */
+	boolean isPresent(Key<?> key);
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.inject.Key;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+
+/**
+ * An immutable set of values to seed scope instances with, see {@link ScopeInstance#seed}. The
+ * values are collected and checked once, and can then be put in any number of instances, which is
+ * meant for filling every new instance of a scope with the same prescoped objects.
+ * <p>
+ * Example:
+ *
+ * <pre>
+ * ScopedValues defaults = ScopedValues.builder().put(propertiesKey, properties).put(starsKey, stars).build();
+ * ...
+ * ScopeInstance galaxy = newGalaxyProvider.get();
+ * galaxy.seed(defaults);
+ * </pre>
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public final class ScopedValues {
+
+	private final Key<?>[] keys;
+	private final Object[] values;
+
+	private ScopedValues(Key<?>[] keys, Object[] values) {
+		this.keys = keys;
+		this.values = values;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @return the number of values
+	 */
+	public int size() {
+		return keys.length;
+	}
+
+	public Key<?> getKey(int index) {
+		return keys[index];
+	}
+
+	@Nullable public Object getValue(int index) {
+		return values[index];
+	}
+
+	public static final class Builder {
+		private final Map<Key<?>, Object> entries = Maps.newLinkedHashMap();
+
+		private Builder() {
+		}
+
+		/**
+		 * Adds the value for the key. A later value for the same key replaces the earlier one.
+		 */
+		public <T> Builder put(ScopedKey<T> key, @Nullable T value) {
+			Preconditions.checkNotNull(key, "key");
+			entries.put(key.getKey(), value);
+			return this;
+		}
+
+		public ScopedValues build() {
+			Key<?>[] keys = new Key<?>[entries.size()];
+			Object[] values = new Object[entries.size()];
+			int i = 0;
+			for (Map.Entry<Key<?>, Object> entry : entries.entrySet()) {
+				keys[i] = entry.getKey();
+				values[i] = entry.getValue();
+				i++;
+			}
+			return new ScopedValues(keys, values);
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.processor;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.protobee.guice.multiscopes.GenerateMultiscope;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.tools.Diagnostic.Kind;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates the annotations and the module of each {@link GenerateMultiscope} declaration. Runs
+ * for any compilation that has this jar on its classpath.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+@SupportedAnnotationTypes("org.protobee.guice.multiscopes.GenerateMultiscope") public class MultiscopeProcessor extends AbstractProcessor {
+
+	@Override public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		for (Element element : roundEnv.getElementsAnnotatedWith(GenerateMultiscope.class)) {
+			// read from the mirror, as the annotation proxy can't be made when scoped classes don't resolve
+			AnnotationMirror mirror = getGenerateMultiscope(element);
+			String name = String.valueOf(getValue(mirror, "value").getValue());
+			if (!SourceVersion.isIdentifier(name) || SourceVersion.isKeyword(name)) {
+				error(element, "'" + name + "' is not a valid multiscope name");
+				continue;
+			}
+			List<TypeElement> scoped = getScopedTypes(element, mirror);
+			if (scoped == null) {
+				continue;
+			}
+			String packageName = processingEnv.getElementUtils().getPackageOf(element).getQualifiedName().toString();
+			try {
+				writeScopeAnnotation(element, packageName, name);
+				writeBindingAnnotation(element, packageName, name, "the " + name + " scope instance the calling thread is in");
+				writeBindingAnnotation(element, packageName, "New" + name, "a new " + name + " scope instance");
+				writeModule(element, packageName, name, scoped);
+			} catch (IOException e) {
+				error(element, "Could not generate the " + name + " multiscope: " + e);
+			}
+		}
+		return true;
+	}
+
+	private AnnotationMirror getGenerateMultiscope(Element element) {
+		for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+			if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(GenerateMultiscope.class.getName())) {
+				return mirror;
+			}
+		}
+		throw new IllegalStateException(element + " isn't annotated with " + GenerateMultiscope.class.getName());
+	}
+
+	/**
+	 * @return the value of the annotation element, or its default
+	 */
+	private AnnotationValue getValue(AnnotationMirror mirror, String name) {
+		for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : processingEnv.getElementUtils().getElementValuesWithDefaults(mirror).entrySet()) {
+			if (entry.getKey().getSimpleName().contentEquals(name)) {
+				return entry.getValue();
+			}
+		}
+		throw new IllegalStateException(mirror + " has no element " + name);
+	}
+
+	/**
+	 * @return the scoped classes of the declaration, or null if they're not valid
+	 */
+	private List<TypeElement> getScopedTypes(Element element, AnnotationMirror mirror) {
+		List<TypeElement> types = Lists.newArrayList();
+		boolean valid = true;
+		AnnotationValue scoped = getValue(mirror, "scoped");
+		// classes that don't resolve show up as error types, or as a bare value instead of a list
+		if (!(scoped.getValue() instanceof List)) {
+			error(element, mirror, scoped, "Scoped classes " + scoped + " could not be resolved");
+			return null;
+		}
+		@SuppressWarnings("unchecked") List<? extends AnnotationValue> values = (List<? extends AnnotationValue>) scoped.getValue();
+		for (AnnotationValue value : values) {
+			Object type = value.getValue();
+			if (!(type instanceof DeclaredType) || ((DeclaredType) type).getKind() != TypeKind.DECLARED) {
+				error(element, mirror, value, "Scoped class " + value + " could not be resolved");
+				valid = false;
+				continue;
+			}
+			types.add((TypeElement) ((DeclaredType) type).asElement());
+		}
+
+		Map<String, TypeElement> constants = Maps.newHashMap();
+		for (TypeElement type : types) {
+			TypeElement previous = constants.put(constantName(type), type);
+			if (previous != null) {
+				error(element, "Scoped classes " + previous + " and " + type + " would both get the constant " + constantName(type) + "_KEY");
+				valid = false;
+			}
+		}
+		return valid ? types : null;
+	}
+
+	private void writeScopeAnnotation(Element origin, String packageName, String name) throws IOException {
+		PrintWriter out = open(origin, packageName, name + "Scope");
+		out.println("import com.google.inject.ScopeAnnotation;");
+		out.println();
+		out.println("import java.lang.annotation.*;");
+		out.println();
+		out.println("/**");
+		out.println(" * Scopes an object in the " + name + " scope (ie, one object instance per " + name + " scope)");
+		out.println(" */");
+		out.println("@Documented @Target({ ElementType.TYPE, ElementType.METHOD }) @Retention(RetentionPolicy.RUNTIME) @ScopeAnnotation public @interface " + name + "Scope {");
+		out.println("}");
+		out.close();
+	}
+
+	private void writeBindingAnnotation(Element origin, String packageName, String name, String description) throws IOException {
+		PrintWriter out = open(origin, packageName, name);
+		out.println("import com.google.inject.BindingAnnotation;");
+		out.println();
+		out.println("import java.lang.annotation.*;");
+		out.println();
+		out.println("/**");
+		out.println(" * Binding annotation for " + description);
+		out.println(" */");
+		out.println("@Documented @Retention(RetentionPolicy.RUNTIME) @Target({ ElementType.FIELD, ElementType.PARAMETER, ElementType.METHOD }) @BindingAnnotation public @interface " + name + " {");
+		out.println("}");
+		out.close();
+	}
+
+	private void writeModule(Element origin, String packageName, String name, List<TypeElement> scoped) throws IOException {
+		String moduleName = name + "ScopeModule";
+		PrintWriter out = open(origin, packageName, moduleName);
+		out.println("import com.google.inject.AbstractModule;");
+		out.println("import org.protobee.guice.multiscopes.MultiscopeBinder;");
+		out.println("import org.protobee.guice.multiscopes.Multiscopes;");
+		out.println("import org.protobee.guice.multiscopes.ScopedKey;");
+		out.println();
+		out.println("/**");
+		out.println(" * Binds the " + name + " multiscope and its scoped classes.");
+		out.println(" */");
+		out.println("public class " + moduleName + " extends AbstractModule {");
+		out.println();
+		for (TypeElement type : scoped) {
+			String typeName = type.getQualifiedName().toString();
+			out.println("\tpublic static final ScopedKey<" + typeName + "> " + constantName(type) + "_KEY = ScopedKey.of(" + typeName + ".class);");
+		}
+		out.println();
+		out.println("\t@Override protected void configure() {");
+		out.println("\t\tMultiscopeBinder binder = Multiscopes.newBinder(binder(), " + name + "Scope.class, " + name + ".class, New" + name + ".class);");
+		if (!scoped.isEmpty()) {
+			StringBuilder keys = new StringBuilder();
+			for (TypeElement type : scoped) {
+				keys.append(keys.length() == 0 ? "" : ", ").append(constantName(type)).append("_KEY.getKey()");
+			}
+			out.println("\t\tbinder.preassignProviderSlots(" + keys + ");");
+		}
+		out.println("\t\tconfigureMultiscope(binder);");
+		for (TypeElement type : scoped) {
+			out.println("\t\tbind(" + constantName(type) + "_KEY.getKey()).in(" + name + "Scope.class);");
+		}
+		out.println("\t}");
+		out.println();
+		out.println("\t/**");
+		out.println("\t * Override to configure the multiscope, like the scope storage map or creation timeouts.");
+		out.println("\t */");
+		out.println("\tprotected void configureMultiscope(MultiscopeBinder binder) {");
+		out.println("\t}");
+		out.println("}");
+		out.close();
+	}
+
+	private PrintWriter open(Element origin, String packageName, String simpleName) throws IOException {
+		String qualifiedName = packageName.length() == 0 ? simpleName : packageName + "." + simpleName;
+		PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(qualifiedName, origin).openWriter());
+		out.println("// Generated by " + getClass().getName() + ", do not edit");
+		if (packageName.length() != 0) {
+			out.println("package " + packageName + ";");
+			out.println();
+		}
+		return out;
+	}
+
+	private void error(Element element, String message) {
+		processingEnv.getMessager().printMessage(Kind.ERROR, message, element);
+	}
+
+	private void error(Element element, AnnotationMirror annotation, AnnotationValue value, String message) {
+		processingEnv.getMessager().printMessage(Kind.ERROR, message, element, annotation, value);
+	}
+
+	/**
+	 * @return the upper case, underscore separated simple name of the type
+	 */
+	static String constantName(TypeElement type) {
+		String simpleName = type.getSimpleName().toString();
+		StringBuilder constant = new StringBuilder();
+		for (int i = 0; i < simpleName.length(); i++) {
+			char c = simpleName.charAt(i);
+			if (i > 0 && Character.isUpperCase(c) && !Character.isUpperCase(simpleName.charAt(i - 1))) {
+				constant.append('_');
+			}
+			constant.append(Character.toUpperCase(c));
+		}
+		return constant.toString();
+	}
+}
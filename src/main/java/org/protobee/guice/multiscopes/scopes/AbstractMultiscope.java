@@ -21,23 +21,69 @@
 package org.protobee.guice.multiscopes.scopes;
 
 import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
 import com.google.inject.Key;
+import com.google.inject.OutOfScopeException;
+import com.google.inject.Provider;
+import com.google.inject.spi.Toolable;
 import org.protobee.guice.multiscopes.Multiscope;
+import org.protobee.guice.multiscopes.MultiscopeUtils;
 import org.protobee.guice.multiscopes.ScopeInstance;
 
+import javax.annotation.Nullable;
 import java.lang.annotation.Annotation;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 abstract class AbstractMultiscope extends Multiscope {
 
-	protected final ThreadLocal<Map<Key<?>, Object>> scopeContext = new ThreadLocal<Map<Key<?>, Object>>();
+	/**
+	 * The index of this multiscope in the {@link ScopeContext} of each thread.
+	 */
+	static final String PROVIDER_CACHE_PROPERTY = "org.protobee.guice.multiscopes.providerCache";
+	private static final boolean PROVIDER_CACHE = !"false".equals(System.getProperty(PROVIDER_CACHE_PROPERTY));
+
+	final int ordinal = ScopeContext.nextOrdinal(this);
+	private final AtomicInteger providerSlots = new AtomicInteger(0);
 	protected final AtomicInteger scopeCounter = new AtomicInteger(0);
+	protected final Key<ScopeInstance> instanceKey;
 	private final String name;
+	private Injector injector = null;
+	private volatile LiveInstanceLimiter limiter = null;
+	// set by the passivator when it's created
+	volatile Passivator passivator = null;
 
 	public AbstractMultiscope(Class<? extends Annotation> bindingAnnotation) {
 		super(bindingAnnotation);
 		this.name = bindingAnnotation.getSimpleName();
+		this.instanceKey = Key.get(ScopeInstance.class, bindingAnnotation);
+	}
+
+	@Inject @Toolable void initialize(Injector injector) {
+		this.injector = injector;
+	}
+
+	/**
+	 * Gets the object for the key from the given scope map without changing the scope state of the
+	 * calling thread. Objects that still have to be created are injected while the thread is put in
+	 * the scope map's instance, so they go through the scoped providers like any other injection.
+	 */
+	@SuppressWarnings("unchecked") <T> T provisionIn(Key<T> key, RealScopeInstance instance) {
+		Object value = instance.layeredValue(key);
+		if (value != null && !(value instanceof AssistedMultiscope.LazyScopedObject)) {
+			return value == NullObject.INSTANCE ? null : (T) value;
+		}
+
+		Preconditions.checkState(injector != null, "%s is not bound in an injector", this);
+		ScopeContext context = ScopeContext.current();
+		RealScopeInstance entered = context.set(ordinal, instance);
+		try {
+			return injector.getInstance(key);
+		} finally {
+			context.set(ordinal, entered);
+		}
 	}
 
 	static void putObjectInScope(Key<?> key, Object object, Map<Key<?>, Object> map) {
@@ -53,23 +99,96 @@ abstract class AbstractMultiscope extends Multiscope {
 			return NullObject.INSTANCE;
 		}
 
-		Preconditions.checkArgument(key.getTypeLiteral().getRawType().isInstance(object), "Value '" + object + "' of type '" + object.getClass().getName() + "' is not compatible with key '" + key + "'");
-
+		if (!key.getTypeLiteral().getRawType().isInstance(object)) {
+			throw new IllegalArgumentException("Value '" + object + "' of type '" + object.getClass().getName() + "' is not compatible with key '" + key + "'");
+		}
 		return object;
 	}
 
+	/**
+	 * Canonicalizes null objects to the null sentinel, for values whose type was already checked.
+	 */
+	static Object canonicalizeValue(Object object) {
+		return object == null ? NullObject.INSTANCE : object;
+	}
+
+	/**
+	 * @return the object stored for the key in the instance, or null if it's absent, null or not yet
+	 * created
+	 */
+	@SuppressWarnings("unchecked") static <T> T lookup(Key<T> key, RealScopeInstance instance) {
+		Object value = instance.layeredValue(key);
+		if (value == null || value == NullObject.INSTANCE || value instanceof AssistedMultiscope.LazyScopedObject) {
+			return null;
+		}
+		return (T) value;
+	}
+
+	/**
+	 * @return if an object has been created or put in the instance for the key
+	 */
+	static boolean isPresent(Key<?> key, RealScopeInstance instance) {
+		Object value = instance.layeredValue(key);
+		return value != null && !(value instanceof AssistedMultiscope.LazyScopedObject);
+	}
+
+	@Override public <T> T tryGet(Key<T> key) {
+		RealScopeInstance instance = ScopeContext.current().get(ordinal);
+		if (instance == null) {
+			return null;
+		}
+		return lookup(key, instance);
+	}
+
+	@Override public boolean isPresent(Key<?> key) {
+		RealScopeInstance instance = ScopeContext.current().get(ordinal);
+		return instance != null && isPresent(key, instance);
+	}
+
 	/**
 	 * @return If we're in this scope on this thread.
 	 */
 	@Override public boolean isInScope() {
-		return scopeContext.get() != null;
+		return ScopeContext.current().get(ordinal) != null;
 	}
 
 	/**
 	 * Makes sure this scope is not entered on the current thread.
 	 */
 	@Override public void exitScope() {
-		scopeContext.set(null);
+		ScopeContext.current().set(ordinal, null);
+	}
+
+	/**
+	 * Called by scoped providers when the calling thread isn't in this scope, or is in a closed
+	 * instance of it.
+	 *
+	 * @return the instance the thread is implicitly in, after putting the thread in it, or null if
+	 * the thread has to enter an instance first
+	 */
+	RealScopeInstance implicitInstance(ScopeContext context) {
+		return null;
+	}
+
+	/**
+	 * @return if the instance is the one the calling thread is implicitly in, see
+	 * {@link #implicitInstance(ScopeContext)}
+	 */
+	boolean isImplicitInstance(RealScopeInstance instance) {
+		return false;
+	}
+
+	/**
+	 * Called on the thread that's being put in the instance, before it's in it. The thread can't be
+	 * in another instance of this multiscope at that point.
+	 */
+	void entering(RealScopeInstance instance) {
+	}
+
+	/**
+	 * Called on the thread that was taken out of the instance, after it's out of it.
+	 */
+	void exited(RealScopeInstance instance) {
 	}
 
 	protected String getName() {
@@ -90,38 +209,194 @@ abstract class AbstractMultiscope extends Multiscope {
 	 * @return the scope instance
 	 */
 	@Override protected ScopeInstance createScopeInstance(final Map<Key<?>, Object> scopeMap) {
-		final int instanceId = scopeCounter.getAndIncrement();
-		ScopeInstance instance = new ScopeInstance() {
+		return newInstance(scopeMap, null);
+	}
+
+	/**
+	 * @return the number of slots given to scoped providers so far, including the preassigned ones,
+	 * which is the size of the provider cache of the instances
+	 */
+	int getProviderSlots() {
+		return getSettings().getPreassignedProviderSlots().size() + providerSlots.get();
+	}
+
+	/**
+	 * @return the provider cache slot of a new scoped provider of the key, which is its preassigned
+	 * slot if it has one
+	 */
+	private int providerSlot(Key<?> key) {
+		List<Key<?>> preassigned = getSettings().getPreassignedProviderSlots();
+		int slot = preassigned.indexOf(key);
+		return slot != -1 ? slot : preassigned.size() + providerSlots.getAndIncrement();
+	}
+
+	/**
+	 * Creates a new scope instance layered on the given instance, with the default scope map.
+	 */
+	ScopeInstance createLayer(RealScopeInstance parent) {
+		return newInstance(MultiscopeUtils.createDefaultScopeMap(), parent);
+	}
+
+	private RealScopeInstance newInstance(Map<Key<?>, Object> scopeMap, @Nullable RealScopeInstance parent) {
+		if (parent != null) {
+			// keeps the parent from being evicted or passivated while the layer is live
+			parent.addingLayer();
+		}
+		LiveInstanceLimiter limiter = liveInstanceLimiter();
+		if (limiter != null) {
+			try {
+				limiter.admit();
+			} catch (RuntimeException e) {
+				if (parent != null) {
+					parent.layerClosed();
+				}
+				throw e;
+			}
+		}
+		RealScopeInstance instance = new RealScopeInstance(this, scopeCounter.getAndIncrement(), scopeMap, parent, limiter);
+		instance.putInScope(instanceKey, instance);
+		if (limiter != null) {
+			limiter.added(instance);
+		}
+		Passivator passivator = this.passivator;
+		if (passivator != null) {
+			passivator.register(instance);
+		}
+		return instance;
+	}
 
-			@Override public boolean isInScope() {
-				return scopeContext.get() == scopeMap;
+	/**
+	 * @return the limiter of the live instances, created on first use because the settings are
+	 * applied after the multiscope is created, or null if there's no limit
+	 */
+	private LiveInstanceLimiter liveInstanceLimiter() {
+		LiveInstanceLimiter limiter = this.limiter;
+		if (limiter == null && getSettings().getMaxLiveInstances() > 0) {
+			synchronized (this) {
+				if (this.limiter == null) {
+					this.limiter = new LiveInstanceLimiter(this, getSettings(), getMetrics());
+				}
+				limiter = this.limiter;
 			}
+		}
+		return limiter;
+	}
+
+	/**
+	 * The provider returned by {@link #scope(Key, Provider)}. Stores objects in the scope map of the
+	 * scope instance entered on the current thread, creating them under a {@link CreationLock}. Each
+	 * provider has a slot in the instances of its multiscope where the value it resolved is cached,
+	 * so repeated injections in an instance don't touch the scope map, whichever instances the
+	 * thread was in in between. Keys can be given fixed slots with
+	 * {@link org.protobee.guice.multiscopes.MultiscopeBinder#preassignProviderSlots}. Setting the
+	 * system property {@value #PROVIDER_CACHE_PROPERTY} to false turns the cache off.
+	 */
+	abstract class ScopedProvider<T> implements Provider<T> {
+		private final Key<T> key;
+		private final Provider<T> creator;
+		private final CreationLock putLock;
+		private final int cacheSlot;
+
+		ScopedProvider(Key<T> key, Provider<T> creator) {
+			this.key = key;
+			this.cacheSlot = providerSlot(key);
+			this.creator = creator;
+			this.putLock = new CreationLock(key, getSettings());
+		}
+
+		/**
+		 * @return if the value stored in the scope map still has to be created
+		 */
+		abstract boolean needsCreation(Object stored);
+
+		/**
+		 * Creates the value, given what was stored in the scope map for the key. Called while holding
+		 * the creation lock and while in the scope.
+		 */
+		abstract Object create(Object stored);
 
-			@Override public void exitScope() {
-				scopeContext.set(null);
+		@Override public T get() {
+			ScopeContext context = ScopeContext.current();
+			RealScopeInstance instance = context.get(ordinal);
+
+			if (instance == null) {
+				instance = implicitInstance(context);
+				if (instance == null) {
+					throw new OutOfScopeException("Cannot access scoped object '" + key + "'. This means we are not inside of a " + getName() + " scoped call.");
+				}
+			}
+			Object value;
+			if (PROVIDER_CACHE && (value = instance.cachedValue(cacheSlot)) != null) {
+				return unwrap(value);
+			}
+			if (instance.isClosed()) {
+				RealScopeInstance closed = instance;
+				instance = implicitInstance(context);
+				if (instance == null) {
+					throw new OutOfScopeException("Cannot access scoped object '" + key + "'. The " + getName() + " scope instance " + closed.getInstanceId() + " is closed.");
+				}
 			}
 
-			@Override public void enterScope() throws IllegalStateException {
-				Preconditions.checkState(scopeContext.get() == null, "Already in " + getName() + " scope.");
-				scopeContext.set(scopeMap);
+			int modCount = instance.getModCount();
+			value = instance.storedValue(key);
+			RealScopeInstance layer = null;
+			if (value == null && instance.parent != null && (layer = instance.declaringLayer(key)) != null) {
+				value = layer.storedValue(key);
 			}
+			if (needsCreation(value)) {
+				value = layer == null ? createInScope(instance) : createInLayer(context, layer);
+			}
+			if (PROVIDER_CACHE) {
+				instance.cacheValue(cacheSlot, modCount, value);
+			}
+			return unwrap(value);
+		}
 
-			@Override public void putInScope(Key<?> key, Object object) {
-				Preconditions.checkNotNull(key, "key");
-				putObjectInScope(key, object, scopeMap);
+		private Object createInScope(RealScopeInstance instance) {
+			RealScopeInstance previousInstance = putLock.acquire(instance);
+			try {
+				Object value = instance.storedValue(key);
+				if (needsCreation(value)) {
+					value = create(value);
+					// TODO: for next guice release, add this check:
+					// if (!Scopes.isCircularProxy(t)) {
+					// Store a sentinel for provider-given null values.
+					if (value == null) {
+						value = NullObject.INSTANCE;
+					}
+					instance.store(key, value);
+					// }
+				}
+				return value;
+			} finally {
+				putLock.release(previousInstance);
 			}
+		}
 
-			@Override public int getInstanceId() {
-				return instanceId;
+		/**
+		 * Creates the value in the parent layer that declares it, with the thread put in that layer so
+		 * the value's dependencies come from it too.
+		 */
+		private Object createInLayer(ScopeContext context, RealScopeInstance layer) {
+			RealScopeInstance entered = context.set(ordinal, layer);
+			try {
+				return createInScope(layer);
+			} finally {
+				context.set(ordinal, entered);
 			}
+		}
 
-			@Override public String toString() {
-				return "{ instanceId: " + instanceId + ", scope: " + AbstractMultiscope.this.toString() + "}";
+		@SuppressWarnings("unchecked") private T unwrap(Object value) {
+			// Accounts for @Nullable providers.
+			if (NullObject.INSTANCE == value) {
+				return null;
 			}
-		};
+			return (T) value;
+		}
 
-		instance.putInScope(Key.get(ScopeInstance.class, getBindingAnnotation()), instance);
-		return instance;
+		@Override public String toString() {
+			return "{ key: " + key + ", unscopedProvider: " + creator + ", scope: " + AbstractMultiscope.this + "}";
+		}
 	}
 
 	/**
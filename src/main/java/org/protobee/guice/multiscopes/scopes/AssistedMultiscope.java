@@ -21,12 +21,9 @@
 package org.protobee.guice.multiscopes.scopes;
 
 import com.google.inject.Key;
-import com.google.inject.OutOfScopeException;
 import com.google.inject.Provider;
-import org.protobee.guice.multiscopes.Multiscope;
 
 import java.lang.annotation.Annotation;
-import java.util.Map;
 
 /**
  * Assisted multiscope facilitates lazy prescoped objects
@@ -40,47 +37,16 @@ public class AssistedMultiscope extends AbstractMultiscope {
 	}
 
 	@Override public <T> Provider<T> scope(final Key<T> key, final Provider<T> creator) {
-		final Object putLock = new Object();
-		final Multiscope scope = this;
-		return new Provider<T>() {
-			@SuppressWarnings("unchecked") public T get() {
-
-				Map<Key<?>, Object> scopeMap = scopeContext.get();
-
-				if (scopeMap == null) {
-					throw new OutOfScopeException("Cannot access scoped object '" + key + "'. This means we are not inside of a " + getName() + " scoped call.");
-				}
-				Object preT = scopeMap.get(key);
-
-				if (preT == null || preT instanceof LazyScopedObject) {
-					synchronized (putLock) {
-						preT = scopeMap.get(key);
-						if (preT == null || preT instanceof LazyScopedObject) {
-							if (preT == null) {
-								preT = creator.get();
-							} else {
-								preT = ((LazyScopedObject) preT).getProvider().get();
-							}
-							// TODO: for next guice release, add this check:
-							// if (!Scopes.isCircularProxy(t)) {
-							// Store a sentinel for provider-given null values.
-							scopeMap.put(key, preT != null ? preT : NullObject.INSTANCE);
-							// }
-						}
-					}
-				}
-				T t = (T) preT;
-
-				// Accounts for @Nullable providers.
-				if (NullObject.INSTANCE == t) {
-					return null;
-				}
-
-				return t;
+		return new ScopedProvider<T>(key, creator) {
+			@Override boolean needsCreation(Object stored) {
+				return stored == null || stored instanceof LazyScopedObject;
 			}
 
-			@Override public String toString() {
-				return "{ key: " + key + ", unscopedProvider: " + creator + ", scope: " + scope + "}";
+			@Override Object create(Object stored) {
+				if (stored == null) {
+					return creator.get();
+				}
+				return ((LazyScopedObject) stored).getProvider().get();
 			}
 		};
 	}
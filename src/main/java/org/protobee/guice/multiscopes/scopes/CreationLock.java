@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.scopes;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.inject.Key;
+import com.google.inject.ProvisionException;
+import org.protobee.guice.multiscopes.MultiscopeSettings;
+import org.protobee.guice.multiscopes.ScopeDeadlockException;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The lock held while creating a scoped object for a key. Uncontended acquisition is a plain
+ * {@link #tryLock()}; contended acquisition honors the creation timeout and cycle detection from
+ * the {@link MultiscopeSettings}, and registers the waiting thread so a
+ * {@link ScopeDeadlockException} can describe the whole wait-for chain.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+class CreationLock extends ReentrantLock {
+	private static final long serialVersionUID = 1L;
+	private static final long CYCLE_CHECK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	/**
+	 * Threads currently waiting for a creation lock, across all multiscopes.
+	 */
+	private static final ConcurrentMap<Thread, Waiter> waiters = new ConcurrentHashMap<Thread, Waiter>();
+
+	private final Key<?> key;
+	private final MultiscopeSettings settings;
+	private volatile RealScopeInstance ownerInstance = null;
+
+	CreationLock(Key<?> key, MultiscopeSettings settings) {
+		this.key = key;
+		this.settings = settings;
+	}
+
+	/**
+	 * Acquires the lock to create the key in the given scope instance.
+	 *
+	 * @return the instance the lock was previously held for (the lock is reentrant), to be given to
+	 * {@link #release(RealScopeInstance)}
+	 * @throws ScopeDeadlockException if the lock could not be acquired in time or a cycle was found
+	 */
+	RealScopeInstance acquire(RealScopeInstance instance) throws ScopeDeadlockException {
+		if (!tryLock()) {
+			awaitLock(instance);
+		}
+		RealScopeInstance previous = ownerInstance;
+		ownerInstance = instance;
+		return previous;
+	}
+
+	void release(RealScopeInstance previous) {
+		ownerInstance = previous;
+		unlock();
+	}
+
+	private void awaitLock(RealScopeInstance instance) {
+		long timeout = settings.getCreationTimeoutNanos();
+		boolean detectCycles = settings.isDetectCreationCycles();
+		if (timeout == 0 && !detectCycles) {
+			lock();
+			return;
+		}
+
+		Thread current = Thread.currentThread();
+		waiters.put(current, new Waiter(this, instance));
+		try {
+			long deadline = System.nanoTime() + timeout;
+			while (true) {
+				long wait = timeout == 0 ? CYCLE_CHECK_INTERVAL_NANOS : deadline - System.nanoTime();
+				if (detectCycles) {
+					wait = Math.min(wait, CYCLE_CHECK_INTERVAL_NANOS);
+				}
+				if (wait > 0 && tryLock(wait, TimeUnit.NANOSECONDS)) {
+					return;
+				}
+
+				List<String> chain = Lists.newArrayList();
+				boolean cycle = describeWaitChain(current, chain);
+				if (detectCycles && cycle) {
+					throw new ScopeDeadlockException("Lock cycle while creating scoped objects: " + Joiner.on(" -> ").join(chain), chain);
+				}
+				if (timeout != 0 && deadline - System.nanoTime() <= 0) {
+					throw new ScopeDeadlockException("Timed out after " + TimeUnit.NANOSECONDS.toMillis(timeout) + "ms waiting to create scoped object '" + key + "'. Wait-for chain: " + Joiner.on(" -> ").join(chain), chain);
+				}
+			}
+		} catch (InterruptedException e) {
+			current.interrupt();
+			throw new ProvisionException("Interrupted while waiting to create scoped object '" + key + "'", e);
+		} finally {
+			waiters.remove(current);
+		}
+	}
+
+	/**
+	 * Follows the wait-for chain from the given thread, adding a '(thread, instance, key)'
+	 * description for every thread on it.
+	 *
+	 * @return true if the chain leads back to the given thread
+	 */
+	private static boolean describeWaitChain(Thread start, List<String> chain) {
+		Set<Thread> visited = Sets.newHashSet(start);
+		Thread thread = start;
+		Waiter waiter = waiters.get(start);
+		while (waiter != null) {
+			chain.add(describe(thread, waiter.lock, waiter.instance));
+			Thread owner = waiter.lock.getOwner();
+			if (owner == null) {
+				return false;
+			}
+			if (owner == start) {
+				return true;
+			}
+			if (!visited.add(owner)) {
+				return false;
+			}
+			Waiter ownerWaiter = waiters.get(owner);
+			if (ownerWaiter == null) {
+				// the end of the chain, a thread that is still creating the object
+				chain.add(describe(owner, waiter.lock, waiter.lock.ownerInstance));
+			}
+			thread = owner;
+			waiter = ownerWaiter;
+		}
+		return false;
+	}
+
+	private static String describe(Thread thread, CreationLock lock, RealScopeInstance instance) {
+		return "(" + thread.getName() + ", " + instance + ", " + lock.key + ")";
+	}
+
+	private static class Waiter {
+		final CreationLock lock;
+		final RealScopeInstance instance;
+
+		Waiter(CreationLock lock, RealScopeInstance instance) {
+			this.lock = lock;
+			this.instance = instance;
+		}
+	}
+}
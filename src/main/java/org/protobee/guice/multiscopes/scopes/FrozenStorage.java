@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.scopes;
+
+import com.google.common.collect.Lists;
+import com.google.inject.Key;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable copy of the storage of a frozen {@link RealScopeInstance}. Keys and values are
+ * packed next to each other in one open addressed array, so a lookup is a few array reads with no
+ * locking.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+final class FrozenStorage {
+
+	// key at 2 * slot, value at 2 * slot + 1
+	private final Object[] table;
+	private final int mask;
+
+	private FrozenStorage(Object[] table) {
+		this.table = table;
+		this.mask = table.length / 2 - 1;
+	}
+
+	static FrozenStorage copyOf(Map<Key<?>, Object> storage) {
+		List<Map.Entry<Key<?>, Object>> entries = Lists.newArrayList(storage.entrySet());
+		// at most half full
+		int slots = Integer.highestOneBit(Math.max(entries.size(), 1)) * 4;
+		Object[] table = new Object[slots * 2];
+		int mask = slots - 1;
+		for (Map.Entry<Key<?>, Object> entry : entries) {
+			int slot = smear(entry.getKey().hashCode()) & mask;
+			while (table[slot * 2] != null) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot * 2] = entry.getKey();
+			table[slot * 2 + 1] = entry.getValue();
+		}
+		return new FrozenStorage(table);
+	}
+
+	/**
+	 * @return the value stored for the key, or null
+	 */
+	Object get(Key<?> key) {
+		Object[] table = this.table;
+		int slot = smear(key.hashCode()) & mask;
+		while (true) {
+			Object stored = table[slot * 2];
+			if (stored == null) {
+				return null;
+			}
+			if (stored == key || stored.equals(key)) {
+				return table[slot * 2 + 1];
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private static int smear(int hashCode) {
+		hashCode ^= (hashCode >>> 20) ^ (hashCode >>> 12);
+		return hashCode ^ (hashCode >>> 7) ^ (hashCode >>> 4);
+	}
+}
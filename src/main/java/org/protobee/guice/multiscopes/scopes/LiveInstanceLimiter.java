@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.scopes;
+
+import org.protobee.guice.multiscopes.AdmissionPolicy;
+import org.protobee.guice.multiscopes.MultiscopeMetrics;
+import org.protobee.guice.multiscopes.MultiscopeSettings;
+import org.protobee.guice.multiscopes.ScopeAdmissionException;
+import org.protobee.guice.multiscopes.util.StripedCounter;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caps the number of live (created and not closed) instances of a multiscope. The live count is a
+ * {@link StripedCounter}, and an instance is admitted by incrementing it and checking the sum, so
+ * admitting doesn't contend on a shared counter. Two threads that race for the last free place
+ * both see each other's increment, so the limit is never passed, but both may be refused.
+ * <br/><br/>
+ * With {@link AdmissionPolicy#EVICT_IDLE} all live instances are kept in a second chance queue.
+ * Instances entered since they were last looked at go to the back of the queue, so the instance
+ * closed is an idle one that hasn't been entered for a while.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+final class LiveInstanceLimiter {
+
+	private final AbstractMultiscope multiscope;
+	private final int maxLiveInstances;
+	private final AdmissionPolicy policy;
+	private final long timeoutNanos;
+	private final StripedCounter liveInstances;
+	private final StripedCounter rejectedInstances;
+	private final StripedCounter evictedInstances;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+	private final AtomicInteger waiters = new AtomicInteger(0);
+
+	private final ConcurrentLinkedQueue<RealScopeInstance> evictionQueue;
+	// instances closed while they were in the eviction queue
+	private final AtomicInteger closedInQueue = new AtomicInteger(0);
+	private final AtomicBoolean purging = new AtomicBoolean(false);
+
+	LiveInstanceLimiter(AbstractMultiscope multiscope, MultiscopeSettings settings, MultiscopeMetrics metrics) {
+		this.multiscope = multiscope;
+		this.maxLiveInstances = settings.getMaxLiveInstances();
+		this.policy = settings.getAdmissionPolicy();
+		this.timeoutNanos = settings.getAdmissionTimeoutNanos();
+		this.liveInstances = metrics.getLiveInstances();
+		this.rejectedInstances = metrics.getRejectedInstances();
+		this.evictedInstances = metrics.getEvictedInstances();
+		this.evictionQueue = policy == AdmissionPolicy.EVICT_IDLE ? new ConcurrentLinkedQueue<RealScopeInstance>() : null;
+	}
+
+	/**
+	 * Takes a place for a new instance, handling a full multiscope with the admission policy.
+	 *
+	 * @throws ScopeAdmissionException if no place could be taken
+	 */
+	void admit() throws ScopeAdmissionException {
+		if (tryAdmit(true)) {
+			return;
+		}
+		switch (policy) {
+			case BLOCK:
+				awaitAdmission();
+				return;
+			case EVICT_IDLE:
+				if (evictAndAdmit()) {
+					return;
+				}
+				throw reject("all " + maxLiveInstances + " live instances are entered");
+			default:
+				throw reject("there are " + maxLiveInstances + " live instances");
+		}
+	}
+
+	/**
+	 * Called with the instance that was just admitted.
+	 */
+	void added(RealScopeInstance instance) {
+		if (evictionQueue != null) {
+			evictionQueue.add(instance);
+		}
+	}
+
+	/**
+	 * Called once when an admitted instance is closed, giving its place back.
+	 */
+	void closed(RealScopeInstance instance) {
+		liveInstances.decrement();
+		signalWaiters();
+		if (evictionQueue != null && closedInQueue.incrementAndGet() > maxLiveInstances) {
+			purgeClosed();
+		}
+	}
+
+	/**
+	 * @param signalOnFailure if a failed attempt signals the waiting threads, which it has to unless
+	 *                        the caller is a waiting thread. The increment of a failed attempt can
+	 *                        make an attempt of a waiting thread fail too.
+	 */
+	private boolean tryAdmit(boolean signalOnFailure) {
+		liveInstances.increment();
+		if (liveInstances.sum() <= maxLiveInstances) {
+			return true;
+		}
+		liveInstances.decrement();
+		if (signalOnFailure) {
+			signalWaiters();
+		}
+		return false;
+	}
+
+	private void signalWaiters() {
+		if (waiters.get() == 0) {
+			return;
+		}
+		lock.lock();
+		try {
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void awaitAdmission() throws ScopeAdmissionException {
+		long remainingNanos = timeoutNanos;
+		lock.lock();
+		waiters.incrementAndGet();
+		try {
+			// waiting threads only try again under the lock, so a place given back between a failed
+			// attempt and the wait is always signalled
+			while (!tryAdmit(false)) {
+				if (timeoutNanos == 0) {
+					released.await();
+				} else if (remainingNanos > 0) {
+					remainingNanos = released.awaitNanos(remainingNanos);
+				} else {
+					throw reject("no instance was closed within " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw reject("the thread was interrupted while waiting");
+		} finally {
+			waiters.decrementAndGet();
+			lock.unlock();
+		}
+	}
+
+	private boolean evictAndAdmit() {
+		// every live instance can be looked at twice, once to clear its entered mark
+		int budget = 2 * (maxLiveInstances + closedInQueue.get()) + 1;
+		while (budget-- > 0) {
+			RealScopeInstance candidate = evictionQueue.poll();
+			if (candidate == null) {
+				return false;
+			}
+			if (candidate.isClosed()) {
+				closedInQueue.decrementAndGet();
+				continue;
+			}
+			// closing checks for threads again, as one can enter after the first look
+			if (candidate.getActiveThreads() > 0 || candidate.clearEnteredMark() || !candidate.closeIfIdle()) {
+				evictionQueue.add(candidate);
+				continue;
+			}
+			// it wasn't in the queue when it was closed
+			closedInQueue.decrementAndGet();
+			evictedInstances.increment();
+			if (tryAdmit(true)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void purgeClosed() {
+		if (!purging.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			for (Iterator<RealScopeInstance> it = evictionQueue.iterator(); it.hasNext(); ) {
+				if (it.next().isClosed()) {
+					it.remove();
+					closedInQueue.decrementAndGet();
+				}
+			}
+		} finally {
+			purging.set(false);
+		}
+	}
+
+	private ScopeAdmissionException reject(String reason) {
+		rejectedInstances.increment();
+		return new ScopeAdmissionException("Cannot create a new " + multiscope.getName() + " scope instance, " + reason + ".", maxLiveInstances);
+	}
+}
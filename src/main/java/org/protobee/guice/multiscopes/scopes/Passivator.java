@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.scopes;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Key;
+import org.protobee.guice.multiscopes.Multiscope;
+import org.protobee.guice.multiscopes.ScopeInstance;
+import org.protobee.guice.multiscopes.ScopePassivation;
+import org.protobee.guice.multiscopes.ScopeSerializer;
+import org.protobee.guice.multiscopes.util.StripedCounter;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link ScopePassivation} of a multiscope in this package. Creating it attaches it to the
+ * multiscope, which from then on registers its new instances and has them remember when they were
+ * last exited.
+ * <br/><br/>
+ * Passivating an instance moves its serializable objects from the scope map to a
+ * {@link SpillFile}, keeping the records in the instance's {@link Spill}. A lookup that misses the
+ * scope map checks the spill and restores the key. Passivating and restoring lock the instance, so
+ * a key is only restored once, and a thread that finds a key missing while it's being passivated
+ * waits for the record.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public class Passivator implements ScopePassivation {
+
+	private final AbstractMultiscope multiscope;
+	private final long idleNanos;
+	private final ScopeSerializer serializer;
+	private final SpillFile spillFile;
+	private final StripedCounter passivatedObjects;
+	private final StripedCounter restoredObjects;
+	private final ConcurrentLinkedQueue<WeakReference<RealScopeInstance>> instances = new ConcurrentLinkedQueue<WeakReference<RealScopeInstance>>();
+
+	public Passivator(Multiscope multiscope, long idleTime, TimeUnit unit, File spillDirectory, ScopeSerializer serializer) {
+		Preconditions.checkArgument(multiscope instanceof AbstractMultiscope, "%s can't be passivated", multiscope);
+		Preconditions.checkArgument(idleTime >= 0, "idleTime must not be negative");
+		Preconditions.checkNotNull(spillDirectory, "spillDirectory");
+		this.multiscope = (AbstractMultiscope) multiscope;
+		this.idleNanos = unit.toNanos(idleTime);
+		this.serializer = Preconditions.checkNotNull(serializer, "serializer");
+		this.spillFile = new SpillFile(spillDirectory, SpillFile.SEGMENT_SIZE);
+		this.passivatedObjects = multiscope.getMetrics().getPassivatedObjects();
+		this.restoredObjects = multiscope.getMetrics().getRestoredObjects();
+		this.multiscope.passivator = this;
+	}
+
+	void register(RealScopeInstance instance) {
+		instance.lastExitNanos = System.nanoTime();
+		instances.add(new WeakReference<RealScopeInstance>(instance));
+	}
+
+	@Override public int passivateIdle() {
+		long now = System.nanoTime();
+		int passivated = 0;
+		for (Iterator<WeakReference<RealScopeInstance>> it = instances.iterator(); it.hasNext(); ) {
+			RealScopeInstance instance = it.next().get();
+			if (instance == null || instance.isClosed()) {
+				it.remove();
+				continue;
+			}
+			if (instance.getActiveThreads() == 0 && now - instance.lastExitNanos >= idleNanos && passivate(instance) > 0) {
+				passivated++;
+			}
+		}
+		return passivated;
+	}
+
+	@Override public int passivate(ScopeInstance scopeInstance) {
+		Preconditions.checkArgument(scopeInstance instanceof RealScopeInstance && ((RealScopeInstance) scopeInstance).multiscope == multiscope, "%s is not an instance of %s", scopeInstance, multiscope);
+		RealScopeInstance instance = (RealScopeInstance) scopeInstance;
+		int passivated;
+		synchronized (instance) {
+			// threads that enter wait for the sweep, so an object isn't read and then replaced by its copy
+			if (instance.isClosed() || !instance.excludeThreads()) {
+				return 0;
+			}
+			try {
+				passivated = passivateObjects(instance);
+			} finally {
+				instance.readmitThreads();
+			}
+		}
+		return passivated;
+	}
+
+	private int passivateObjects(RealScopeInstance instance) {
+		int passivated = 0;
+		Spill spill = instance.spill;
+		if (spill == null) {
+			spill = new Spill();
+			// published before objects leave the scope map, so lookups that miss find the record
+			instance.spill = spill;
+		}
+		for (Map.Entry<Key<?>, Object> entry : Lists.newArrayList(instance.storage.entrySet())) {
+			Key<?> key = entry.getKey();
+			Object value = entry.getValue();
+			if (key.equals(multiscope.instanceKey) || value == AbstractMultiscope.NullObject.INSTANCE || value instanceof AssistedMultiscope.LazyScopedObject || !serializer.canSerialize(key, value)) {
+				continue;
+			}
+			SpillFile.Record record;
+			try {
+				record = spillFile.write(serializer.serialize(value));
+			} catch (IOException e) {
+				// objects that can't be written stay in memory
+				continue;
+			}
+			if (record == null) {
+				continue;
+			}
+			spill.records.put(key, record);
+			if (removeIfSame(instance.storage, key, value)) {
+				passivated++;
+			} else {
+				// replaced while it was written
+				spill.records.remove(key);
+				spillFile.free(record);
+			}
+		}
+		if (passivated > 0) {
+			instance.storageChanged();
+			instance.invalidateCaches();
+			passivatedObjects.add(passivated);
+		}
+		return passivated;
+	}
+
+	private static boolean removeIfSame(Map<Key<?>, Object> storage, Key<?> key, Object value) {
+		if (storage instanceof ConcurrentMap) {
+			return ((ConcurrentMap<Key<?>, Object>) storage).remove(key, value);
+		}
+		synchronized (storage) {
+			if (storage.get(key) != value) {
+				return false;
+			}
+			storage.remove(key);
+			return true;
+		}
+	}
+
+	/**
+	 * @return the size of the spill file, in bytes
+	 */
+	public long getSpillFileSize() {
+		return spillFile.size();
+	}
+
+	/**
+	 * The passivated objects of a scope instance.
+	 */
+	final class Spill {
+		final ConcurrentMap<Key<?>, SpillFile.Record> records = Maps.newConcurrentMap();
+
+		/**
+		 * @return the restored object, or null if the key wasn't passivated
+		 */
+		Object restore(RealScopeInstance instance, Key<?> key) {
+			if (!records.containsKey(key)) {
+				return null;
+			}
+			synchronized (instance) {
+				SpillFile.Record record = records.remove(key);
+				if (record == null) {
+					// restored by another thread
+					return instance.storage.get(key);
+				}
+				Object value;
+				try {
+					value = serializer.deserialize(spillFile.read(record));
+				} catch (IOException e) {
+					throw new IllegalStateException("Couldn't restore the passivated object of " + key + " in " + instance, e);
+				}
+				Object existing = instance.storage.get(key);
+				if (existing != null) {
+					// put in the instance after it was passivated
+					return existing;
+				}
+				instance.store(key, value);
+				restoredObjects.increment();
+				return value;
+			}
+		}
+
+		/**
+		 * Frees the records of a closed instance.
+		 */
+		void discard() {
+			for (Key<?> key : records.keySet()) {
+				SpillFile.Record record = records.remove(key);
+				if (record != null) {
+					spillFile.free(record);
+				}
+			}
+		}
+	}
+}
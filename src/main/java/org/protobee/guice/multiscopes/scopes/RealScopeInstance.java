@@ -0,0 +1,514 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.scopes;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import com.google.inject.Key;
+import org.protobee.guice.multiscopes.Multiscope;
+import org.protobee.guice.multiscopes.ScopeInstance;
+import org.protobee.guice.multiscopes.ScopedKey;
+import org.protobee.guice.multiscopes.ScopedValues;
+import org.protobee.guice.multiscopes.util.StripedCounter;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The {@link ScopeInstance} of the multiscopes in this package. Entering the instance puts it in
+ * the {@link ScopeContext} of the thread, at the ordinal of its multiscope.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+class RealScopeInstance implements ScopeInstance {
+	private static final AtomicIntegerFieldUpdater<RealScopeInstance> modCountUpdater = AtomicIntegerFieldUpdater.newUpdater(RealScopeInstance.class, "modCount");
+	private static final AtomicIntegerFieldUpdater<RealScopeInstance> writesUpdater = AtomicIntegerFieldUpdater.newUpdater(RealScopeInstance.class, "writes");
+	private static final int OPEN = 0;
+	private static final int EXCLUSIVE = 1;
+	private static final int DRAINING = 2;
+	private static final AtomicIntegerFieldUpdater<RealScopeInstance> drainStateUpdater = AtomicIntegerFieldUpdater.newUpdater(RealScopeInstance.class, "drainState");
+	private static final AtomicIntegerFieldUpdater<RealScopeInstance> closedUpdater = AtomicIntegerFieldUpdater.newUpdater(RealScopeInstance.class, "closed");
+	private static final AtomicIntegerFieldUpdater<RealScopeInstance> liveLayersUpdater = AtomicIntegerFieldUpdater.newUpdater(RealScopeInstance.class, "liveLayers");
+
+	final AbstractMultiscope multiscope;
+	final Map<Key<?>, Object> storage;
+	@Nullable final RealScopeInstance parent;
+	private final int instanceId;
+	@Nullable private final LiveInstanceLimiter limiter;
+	private volatile int modCount = 0;
+	private volatile int closed = 0;
+	// striped, many threads can enter and exit a shared instance at the same time
+	private final StripedCounter activeThreads = new StripedCounter();
+	// OPEN, EXCLUSIVE while a thread holding the monitor keeps other threads out, or DRAINING
+	private volatile int drainState = OPEN;
+	// layers created on this instance that aren't closed, which read from it whenever they're used
+	private volatile int liveLayers = 0;
+	// only kept for instances of a multiscope with a live instance limit
+	private volatile boolean enteredMark = false;
+	// only kept for instances of a multiscope with passivation
+	volatile long lastExitNanos = 0;
+	@Nullable volatile Passivator.Spill spill = null;
+	// read instead of the storage once the instance is frozen, replaced on every write
+	@Nullable private volatile FrozenStorage frozen = null;
+	private volatile int writes = 0;
+	// the values the scoped providers resolved in this instance, dropped when it's closed or passivated
+	@Nullable private volatile ProviderCache providerCache = null;
+	// not atomic on purpose, lost increments only delay the automatic freeze
+	private int readsSinceWrite = 0;
+
+	RealScopeInstance(AbstractMultiscope multiscope, int instanceId, Map<Key<?>, Object> storage, @Nullable RealScopeInstance parent, @Nullable LiveInstanceLimiter limiter) {
+		this.multiscope = multiscope;
+		this.instanceId = instanceId;
+		this.storage = storage;
+		this.parent = parent;
+		this.limiter = limiter;
+	}
+
+	Multiscope getMultiscope() {
+		return multiscope;
+	}
+
+	/**
+	 * @return the number of times an object was put in this instance or its parent layers from the
+	 * outside, which invalidates the values the scoped providers cached for it
+	 */
+	int getModCount() {
+		int modCount = this.modCount;
+		return parent == null ? modCount : modCount + parent.getModCount();
+	}
+
+	/**
+	 * Called by the {@link ScopeContext} before a thread is put in this instance.
+	 *
+	 * @throws IllegalStateException if the instance is draining or closed, in which case the thread
+	 *                               isn't put in it
+	 */
+	void entering() throws IllegalStateException {
+		while (true) {
+			// counted before checking, so closeWhenDrained() and excludeThreads() either see this
+			// thread or are seen by it
+			activeThreads.increment();
+			int drainState = this.drainState;
+			if (drainState == OPEN) {
+				break;
+			}
+			activeThreads.decrement();
+			if (drainState == DRAINING) {
+				closeIfDrained();
+				throw new IllegalStateException(this + " is closing when drained");
+			}
+			// another thread is evicting or passivating the instance, which holds the monitor
+			synchronized (this) {
+				checkOpen();
+			}
+		}
+		multiscope.entering(this);
+		if (limiter != null && !enteredMark) {
+			enteredMark = true;
+		}
+	}
+
+	/**
+	 * Called by the {@link ScopeContext} after a thread is taken out of this instance.
+	 */
+	void exited() {
+		if (multiscope.passivator != null) {
+			lastExitNanos = System.nanoTime();
+		}
+		multiscope.exited(this);
+		activeThreads.decrement();
+		if (drainState == DRAINING) {
+			closeIfDrained();
+		}
+	}
+
+	@Override public int getActiveThreads() {
+		return (int) activeThreads.sum();
+	}
+
+	@Override public void closeWhenDrained() {
+		drainState = DRAINING;
+		closeIfDrained();
+	}
+
+	/**
+	 * Keeps threads from entering the instance until {@link #readmitThreads()}, if no thread is in it.
+	 * Threads that try to enter meanwhile wait for the monitor, so the caller has to hold it.
+	 *
+	 * @return false if a thread is in the instance, it has live layers or it's closing when drained,
+	 * in which case threads aren't kept out
+	 */
+	boolean excludeThreads() {
+		// threads in the layers read this instance without entering it
+		if (liveLayers != 0 || !drainStateUpdater.compareAndSet(this, OPEN, EXCLUSIVE)) {
+			return false;
+		}
+		// set before counting, so entering threads either see the state or are counted
+		if (activeThreads.sum() == 0) {
+			return true;
+		}
+		readmitThreads();
+		return false;
+	}
+
+	/**
+	 * Lets threads enter the instance again after {@link #excludeThreads()}.
+	 */
+	void readmitThreads() {
+		// unless closeWhenDrained() was called in between
+		drainStateUpdater.compareAndSet(this, EXCLUSIVE, OPEN);
+	}
+
+	/**
+	 * Closes the instance if no thread is in it, without letting a thread enter in between.
+	 *
+	 * @return if the instance was closed
+	 */
+	boolean closeIfIdle() {
+		synchronized (this) {
+			if (!excludeThreads()) {
+				return false;
+			}
+			// threads that were kept out see it closed
+			close();
+			return true;
+		}
+	}
+
+	private void closeIfDrained() {
+		if (activeThreads.sum() == 0) {
+			close();
+		}
+	}
+
+	/**
+	 * @return the object stored for the key, restoring it if it was passivated, or null if the key
+	 * has nothing stored
+	 */
+	Object storedValue(Key<?> key) {
+		FrozenStorage frozen = this.frozen;
+		Object value;
+		if (frozen != null) {
+			value = frozen.get(key);
+		} else {
+			value = storage.get(key);
+			// misses are usually followed by a write
+			if (value != null) {
+				countRead();
+			}
+		}
+		if (value == null) {
+			Passivator.Spill spill = this.spill;
+			if (spill != null) {
+				value = spill.restore(this, key);
+			}
+		}
+		return value;
+	}
+
+	private void countRead() {
+		int freezeAfterReads = multiscope.getSettings().getFreezeAfterReads();
+		if (freezeAfterReads > 0 && ++readsSinceWrite >= freezeAfterReads) {
+			freeze();
+		}
+	}
+
+	/**
+	 * Stores the object for the key, replacing the frozen copy if the instance is frozen.
+	 */
+	void store(Key<?> key, Object value) {
+		storage.put(key, value);
+		storageChanged();
+	}
+
+	/**
+	 * Called after the storage was written to.
+	 */
+	void storageChanged() {
+		readsSinceWrite = 0;
+		// counted before checking, so a concurrent freeze() either sees this write or is seen by it
+		writesUpdater.incrementAndGet(this);
+		if (frozen != null) {
+			synchronized (this) {
+				// copied while holding the lock, so the last copy published has every write before it
+				if (frozen != null) {
+					frozen = FrozenStorage.copyOf(storage);
+				}
+			}
+		}
+	}
+
+	@Override public void freeze() {
+		synchronized (this) {
+			int writes;
+			do {
+				if (closed != 0) {
+					return;
+				}
+				writes = this.writes;
+				frozen = FrozenStorage.copyOf(storage);
+			} while (writes != this.writes);
+		}
+	}
+
+	@Override public boolean isFrozen() {
+		return frozen != null;
+	}
+
+	/**
+	 * @return the object stored for the key in this instance or, if there's none, in the nearest
+	 * parent layer that has one
+	 */
+	Object layeredValue(Key<?> key) {
+		Object value = storedValue(key);
+		for (RealScopeInstance layer = parent; value == null && layer != null; layer = layer.parent) {
+			value = layer.storedValue(key);
+		}
+		return value;
+	}
+
+	/**
+	 * @return the nearest parent layer that has something stored for the key, or null
+	 */
+	@Nullable RealScopeInstance declaringLayer(Key<?> key) {
+		for (RealScopeInstance layer = parent; layer != null; layer = layer.parent) {
+			if (layer.storedValue(key) != null) {
+				return layer;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Called before a layer is created on this instance. Holds the monitor, so a layer isn't added
+	 * while {@link #excludeThreads()} keeps threads out.
+	 *
+	 * @throws IllegalStateException if the instance is closed
+	 */
+	void addingLayer() {
+		synchronized (this) {
+			checkOpen();
+			liveLayersUpdater.incrementAndGet(this);
+		}
+	}
+
+	/**
+	 * Called when a layer created on this instance is closed, or couldn't be created.
+	 */
+	void layerClosed() {
+		liveLayersUpdater.decrementAndGet(this);
+	}
+
+	/**
+	 * Makes the scoped providers read the storage again instead of using the values they cached.
+	 */
+	void invalidateCaches() {
+		modCountUpdater.incrementAndGet(this);
+		providerCache = null;
+	}
+
+	/**
+	 * @return the value the scoped provider with the slot cached in this instance, if nothing was put
+	 * in this instance or its parent layers since; null otherwise
+	 */
+	Object cachedValue(int slot) {
+		ProviderCache cache = providerCache;
+		if (cache != null && slot < cache.values.length() && cache.modCount == getModCount()) {
+			return cache.values.get(slot);
+		}
+		return null;
+	}
+
+	/**
+	 * Caches the value a scoped provider resolved in this instance.
+	 *
+	 * @param modCount the mod count read before the value was looked up, a value looked up before a
+	 *                 later put isn't cached
+	 */
+	void cacheValue(int slot, int modCount, Object value) {
+		ProviderCache cache = providerCache;
+		if (cache == null || cache.modCount != modCount || slot >= cache.values.length()) {
+			if (modCount != getModCount()) {
+				return;
+			}
+			// racing threads can replace each other's cache, which only costs them a miss
+			cache = new ProviderCache(modCount, Math.max(slot + 1, multiscope.getProviderSlots()), cache);
+			providerCache = cache;
+			// set after close() checks, so either it drops this cache or this sees it closed
+			if (closed != 0) {
+				providerCache = null;
+				return;
+			}
+		}
+		cache.values.set(slot, value);
+	}
+
+	/**
+	 * @return if the instance was entered since the last call
+	 */
+	boolean clearEnteredMark() {
+		boolean entered = enteredMark;
+		enteredMark = false;
+		return entered;
+	}
+
+	@Override public boolean isInScope() {
+		return ScopeContext.current().get(multiscope.ordinal) == this;
+	}
+
+	@Override public void exitScope() {
+		multiscope.exitScope();
+	}
+
+	@Override public void enterScope() throws IllegalStateException {
+		ScopeContext context = ScopeContext.current();
+		if (context.get(multiscope.ordinal) != null) {
+			throw new IllegalStateException("Already in " + multiscope.getName() + " scope.");
+		}
+		checkOpen();
+		context.set(multiscope.ordinal, this);
+	}
+
+	@Override public void putInScope(Key<?> key, Object object) {
+		Preconditions.checkNotNull(key, "key");
+		checkOpen();
+		AbstractMultiscope.putObjectInScope(key, object, storage);
+		storageChanged();
+		modCountUpdater.incrementAndGet(this);
+	}
+
+	@Override public <T> void putInScope(ScopedKey<T> key, T object) {
+		checkOpen();
+		storage.put(key.getKey(), AbstractMultiscope.canonicalizeValue(object));
+		storageChanged();
+		modCountUpdater.incrementAndGet(this);
+	}
+
+	@Override public void seed(ScopedValues values) {
+		checkOpen();
+		for (int i = 0, size = values.size(); i < size; i++) {
+			storage.put(values.getKey(i), AbstractMultiscope.canonicalizeValue(values.getValue(i)));
+		}
+		storageChanged();
+		modCountUpdater.incrementAndGet(this);
+	}
+
+	/**
+	 * Objects that are created in the instance while it's being closed may stay open.
+	 */
+	@Override public void close() {
+		if (!closedUpdater.compareAndSet(this, 0, 1)) {
+			return;
+		}
+		modCountUpdater.incrementAndGet(this);
+		providerCache = null;
+		synchronized (this) {
+			frozen = null;
+		}
+		List<Object> values = Lists.newArrayList(storage.values());
+		storage.clear();
+		Passivator.Spill spill = this.spill;
+		if (spill != null) {
+			spill.discard();
+		}
+		for (Object value : values) {
+			if (value instanceof Closeable) {
+				Closeables.closeQuietly((Closeable) value);
+			}
+		}
+		if (limiter != null) {
+			limiter.closed(this);
+		}
+		if (parent != null) {
+			parent.layerClosed();
+		}
+	}
+
+	@Override public boolean isClosed() {
+		return closed != 0;
+	}
+
+	private void checkOpen() {
+		if (closed != 0) {
+			throw new IllegalStateException(this + " is closed");
+		}
+	}
+
+	@Override public int getInstanceId() {
+		return instanceId;
+	}
+
+	@Override public ScopeInstance newLayer() {
+		checkOpen();
+		return multiscope.createLayer(this);
+	}
+
+	@Override public ScopeInstance getParentLayer() {
+		return parent;
+	}
+
+	@Override public <T> T get(Key<T> key) {
+		Preconditions.checkNotNull(key, "key");
+		checkOpen();
+		return multiscope.provisionIn(key, this);
+	}
+
+	@Override public <T> T get(Class<T> type) {
+		Preconditions.checkNotNull(type, "type");
+		return get(Key.get(type));
+	}
+
+	@Override public <T> T tryGet(Key<T> key) {
+		return AbstractMultiscope.lookup(key, this);
+	}
+
+	@Override public boolean isPresent(Key<?> key) {
+		return AbstractMultiscope.isPresent(key, this);
+	}
+
+	@Override public String toString() {
+		return "{ instanceId: " + instanceId + ", scope: " + multiscope.toString() + "}";
+	}
+
+	/**
+	 * The values the scoped providers resolved in an instance, by provider slot. Only valid for the
+	 * mod count it was created with.
+	 */
+	private static final class ProviderCache {
+		final int modCount;
+		final AtomicReferenceArray<Object> values;
+
+		ProviderCache(int modCount, int length, @Nullable ProviderCache previous) {
+			this.modCount = modCount;
+			this.values = new AtomicReferenceArray<Object>(length);
+			if (previous != null && previous.modCount == modCount) {
+				for (int i = 0; i < previous.values.length(); i++) {
+					values.set(i, previous.values.get(i));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.scopes;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import org.protobee.guice.multiscopes.Multiscope;
+import org.protobee.guice.multiscopes.ScopeInstance;
+
+import javax.annotation.Nullable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Set;
+
+/**
+ * The scope state of one thread, for every multiscope. Each multiscope gets an ordinal when it's
+ * created (when the injector is built), and the scope instance it has entered on the thread is kept
+ * at that ordinal in one array. A scoped injection is then one {@link ThreadLocal} read and an array
+ * load, no matter how many multiscopes there are, and exiting a set of multiscopes only touches
+ * the scopes that are actually entered.
+ * <br/><br/>
+ * Threads that are a {@link ScopeContextThread} hold their context in a field, which skips the
+ * {@link ThreadLocal} lookup altogether.
+ * <br/><br/>
+ * Ordinals are reused once their multiscope has been garbage collected, so the arrays of a thread
+ * stay as long as the number of multiscopes that are live at the same time, not the number ever
+ * created in the JVM.
+ * <br/><br/>
+ * For leak detection the context can sample where instances were entered, see
+ * {@link #setEnterSiteSampling(int)}.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public final class ScopeContext {
+
+	private static final ReferenceQueue<AbstractMultiscope> collectedMultiscopes = new ReferenceQueue<AbstractMultiscope>();
+	// the references have to stay reachable to be enqueued
+	private static final Set<OrdinalReference> ordinalReferences = Sets.newHashSet();
+	private static final BitSet freeOrdinals = new BitSet();
+	private static int ordinalCount = 0;
+	private static final RealScopeInstance[] NO_INSTANCES = new RealScopeInstance[0];
+	private static final Throwable[] NO_SITES = new Throwable[0];
+	private static final ThreadLocal<ScopeContext> contexts = new ThreadLocal<ScopeContext>() {
+		@Override protected ScopeContext initialValue() {
+			return new ScopeContext();
+		}
+	};
+
+	private RealScopeInstance[] entered = NO_INSTANCES;
+	private int[] enteredOrdinals = new int[4];
+	private int enteredCount = 0;
+	private int enterSiteSampling = 0;
+	private int enterSamples = 0;
+	private Throwable[] enterSites = NO_SITES;
+
+	ScopeContext() {
+	}
+
+	/**
+	 * @return the scope context of the current thread
+	 */
+	public static ScopeContext current() {
+		Thread thread = Thread.currentThread();
+		if (thread instanceof ScopeContextThread) {
+			return ((ScopeContextThread) thread).scopeContext;
+		}
+		return contexts.get();
+	}
+
+	/**
+	 * @return the lowest ordinal not used by a live multiscope, which is freed again once the
+	 * multiscope is garbage collected. Threads can't be in the instances of a collected multiscope,
+	 * as their instances reference it.
+	 */
+	static synchronized int nextOrdinal(AbstractMultiscope multiscope) {
+		Reference<? extends AbstractMultiscope> collected;
+		while ((collected = collectedMultiscopes.poll()) != null) {
+			ordinalReferences.remove(collected);
+			freeOrdinals.set(((OrdinalReference) collected).ordinal);
+		}
+		int ordinal = freeOrdinals.nextSetBit(0);
+		if (ordinal == -1) {
+			ordinal = ordinalCount++;
+		} else {
+			freeOrdinals.clear(ordinal);
+		}
+		ordinalReferences.add(new OrdinalReference(multiscope, ordinal));
+		return ordinal;
+	}
+
+	/**
+	 * @return the ordinal of the given multiscope in the scope context, or -1 if the multiscope keeps
+	 * its scope state somewhere else
+	 */
+	public static int ordinalOf(Multiscope multiscope) {
+		if (multiscope instanceof AbstractMultiscope) {
+			return ((AbstractMultiscope) multiscope).ordinal;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the ordinals of the given multiscopes that keep their scope state in the scope context
+	 */
+	public static BitSet ordinalsOf(Iterable<? extends Multiscope> multiscopes) {
+		BitSet ordinals = new BitSet();
+		for (Multiscope multiscope : multiscopes) {
+			int ordinal = ordinalOf(multiscope);
+			if (ordinal != -1) {
+				ordinals.set(ordinal);
+			}
+		}
+		return ordinals;
+	}
+
+	/**
+	 * @return the number of multiscopes entered on this thread
+	 */
+	public int getEnteredCount() {
+		return enteredCount;
+	}
+
+	/**
+	 * @param index from 0 to {@link #getEnteredCount()}, exclusive. Exiting a scope can change the
+	 *              index of the other entered instances.
+	 * @return an entered instance
+	 */
+	public ScopeInstance getEntered(int index) {
+		Preconditions.checkElementIndex(index, enteredCount);
+		return entered[enteredOrdinals[index]];
+	}
+
+	/**
+	 * @param index from 0 to {@link #getEnteredCount()}, exclusive
+	 * @return the ordinal of the multiscope of the instance at the index
+	 */
+	public int getEnteredOrdinal(int index) {
+		Preconditions.checkElementIndex(index, enteredCount);
+		return enteredOrdinals[index];
+	}
+
+	/**
+	 * @param index from 0 to {@link #getEnteredCount()}, exclusive
+	 * @return the stack trace of where the instance at the index was entered, if that enter was
+	 * sampled
+	 */
+	@Nullable public Throwable getEnterSite(int index) {
+		Preconditions.checkElementIndex(index, enteredCount);
+		int ordinal = enteredOrdinals[index];
+		return ordinal < enterSites.length ? enterSites[ordinal] : null;
+	}
+
+	/**
+	 * @param index from 0 to {@link #getEnteredCount()}, exclusive
+	 * @return if the instance at the index is one the thread is in implicitly, like the instance of
+	 * the thread in a {@link ThreadMultiscope}, rather than one that was entered
+	 */
+	public boolean isImplicit(int index) {
+		Preconditions.checkElementIndex(index, enteredCount);
+		RealScopeInstance instance = entered[enteredOrdinals[index]];
+		return instance.multiscope.isImplicitInstance(instance);
+	}
+
+	/**
+	 * Makes this thread record the stack trace of every n-th scope enter, so leaked scopes can be
+	 * reported with where they were entered. Taking a stack trace is slow, which is why only a
+	 * sample of the enters record it.
+	 *
+	 * @param rate record every rate-th enter, or 0 to record none (the default)
+	 * @return the previous rate
+	 */
+	public int setEnterSiteSampling(int rate) {
+		Preconditions.checkArgument(rate >= 0, "rate must not be negative");
+		int previous = enterSiteSampling;
+		enterSiteSampling = rate;
+		return previous;
+	}
+
+	/**
+	 * Exits every entered multiscope whose ordinal is in the given set.
+	 */
+	public void exitAll(BitSet ordinals) {
+		for (int i = enteredCount - 1; i >= 0; i--) {
+			int ordinal = enteredOrdinals[i];
+			if (ordinals.get(ordinal)) {
+				set(ordinal, null);
+			}
+		}
+	}
+
+	/**
+	 * Exits the multiscope with the given ordinal.
+	 *
+	 * @return the instance that was entered, or null if none was
+	 */
+	public ScopeInstance exit(int ordinal) {
+		return set(ordinal, null);
+	}
+
+	RealScopeInstance get(int ordinal) {
+		RealScopeInstance[] entered = this.entered;
+		return ordinal < entered.length ? entered[ordinal] : null;
+	}
+
+	/**
+	 * Sets the instance entered for the multiscope with the given ordinal. If the instance can't be
+	 * entered the previously entered instance is entered again, so callers that restore the previous
+	 * instance in a finally block can set the new one before their try block.
+	 *
+	 * @return the previously entered instance
+	 * @throws IllegalStateException if the instance is closing when drained
+	 */
+	RealScopeInstance set(int ordinal, RealScopeInstance instance) {
+		if (ordinal >= entered.length) {
+			if (instance == null) {
+				return null;
+			}
+			entered = grow(entered, ordinal);
+		}
+		RealScopeInstance previous = entered[ordinal];
+		if (previous == instance) {
+			return previous;
+		}
+		if (previous != null) {
+			entered[ordinal] = null;
+			previous.exited();
+		}
+		if (instance != null) {
+			try {
+				instance.entering();
+			} catch (RuntimeException e) {
+				if (previous != null && !reenter(ordinal, previous)) {
+					enteredCount = remove(enteredOrdinals, enteredCount, ordinal);
+				}
+				throw e;
+			}
+			entered[ordinal] = instance;
+		}
+		if (enterSiteSampling != 0 || ordinal < enterSites.length) {
+			recordEnterSite(ordinal, instance);
+		}
+		if (previous == null) {
+			enteredOrdinals = add(enteredOrdinals, enteredCount++, ordinal);
+		} else if (instance == null) {
+			enteredCount = remove(enteredOrdinals, enteredCount, ordinal);
+		}
+		return previous;
+	}
+
+	private boolean reenter(int ordinal, RealScopeInstance previous) {
+		try {
+			previous.entering();
+		} catch (RuntimeException e) {
+			// started draining since it was exited, the thread stays out of it
+			return false;
+		}
+		entered[ordinal] = previous;
+		return true;
+	}
+
+	private void recordEnterSite(int ordinal, RealScopeInstance instance) {
+		Throwable site = null;
+		if (instance != null && enterSiteSampling != 0 && enterSamples++ % enterSiteSampling == 0) {
+			site = new Throwable(instance + " entered here");
+			if (ordinal >= enterSites.length) {
+				enterSites = Arrays.copyOf(enterSites, ordinal + 1);
+			}
+		}
+		if (ordinal < enterSites.length) {
+			enterSites[ordinal] = site;
+		}
+	}
+
+	private static RealScopeInstance[] grow(RealScopeInstance[] instances, int ordinal) {
+		Preconditions.checkState(ordinal >= 0);
+		return Arrays.copyOf(instances, ordinal + 1);
+	}
+
+	private static int[] add(int[] ordinals, int index, int ordinal) {
+		if (index == ordinals.length) {
+			ordinals = Arrays.copyOf(ordinals, ordinals.length * 2);
+		}
+		ordinals[index] = ordinal;
+		return ordinals;
+	}
+
+	private static int remove(int[] ordinals, int count, int ordinal) {
+		for (int i = 0; i < count; i++) {
+			if (ordinals[i] == ordinal) {
+				ordinals[i] = ordinals[count - 1];
+				return count - 1;
+			}
+		}
+		return count;
+	}
+
+	private static final class OrdinalReference extends WeakReference<AbstractMultiscope> {
+		final int ordinal;
+
+		OrdinalReference(AbstractMultiscope multiscope, int ordinal) {
+			super(multiscope, collectedMultiscopes);
+			this.ordinal = ordinal;
+		}
+	}
+}
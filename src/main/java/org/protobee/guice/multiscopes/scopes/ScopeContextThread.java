@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.scopes;
+
+/**
+ * A thread that holds its {@link ScopeContext} in a field instead of a {@link ThreadLocal}. Useful
+ * for worker pools that do a lot of scoped injection, for example by returning these from the
+ * pool's {@link java.util.concurrent.ThreadFactory}.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public class ScopeContextThread extends Thread {
+
+	final ScopeContext scopeContext = new ScopeContext();
+
+	public ScopeContextThread() {
+		super();
+	}
+
+	public ScopeContextThread(Runnable target) {
+		super(target);
+	}
+
+	public ScopeContextThread(String name) {
+		super(name);
+	}
+
+	public ScopeContextThread(Runnable target, String name) {
+		super(target, name);
+	}
+
+	public ScopeContextThread(ThreadGroup group, Runnable target, String name) {
+		super(group, target, name);
+	}
+}
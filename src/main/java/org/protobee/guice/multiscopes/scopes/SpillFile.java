@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.scopes;
+
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * An append-only file of passivated objects, mapped into memory in fixed size segments. Records are
+ * appended to the current segment, and a segment whose records were all read back or discarded is
+ * reused, so the file doesn't grow past the segments needed for the objects that are passivated at
+ * the same time. The file is created on the first write and deleted on exit.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+final class SpillFile {
+
+	static final int SEGMENT_SIZE = 1 << 24;
+
+	private final File directory;
+	private final int segmentSize;
+	private RandomAccessFile file = null;
+	private final List<Segment> segments = Lists.newArrayList();
+	private final Deque<Segment> freeSegments = new ArrayDeque<Segment>();
+	private Segment current = null;
+
+	SpillFile(File directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * @return the record of the written bytes, or null if they don't fit in a segment
+	 */
+	synchronized Record write(byte[] bytes) throws IOException {
+		if (bytes.length > segmentSize) {
+			return null;
+		}
+		if (current == null || segmentSize - current.position < bytes.length) {
+			current = nextSegment();
+		}
+		ByteBuffer buffer = current.buffer.duplicate();
+		buffer.position(current.position);
+		buffer.put(bytes);
+		Record record = new Record(current, current.position, bytes.length);
+		current.position += bytes.length;
+		current.liveRecords++;
+		return record;
+	}
+
+	/**
+	 * Reads the record, which can be done once, freeing its place.
+	 */
+	byte[] read(Record record) {
+		byte[] bytes = new byte[record.length];
+		ByteBuffer buffer = record.segment.buffer.duplicate();
+		buffer.position(record.offset);
+		buffer.get(bytes);
+		free(record);
+		return bytes;
+	}
+
+	synchronized void free(Record record) {
+		Segment segment = record.segment;
+		segment.liveRecords--;
+		if (segment.liveRecords == 0 && segment != current) {
+			segment.position = 0;
+			freeSegments.add(segment);
+		}
+	}
+
+	/**
+	 * @return the size of the file, in bytes
+	 */
+	synchronized long size() {
+		return (long) segments.size() * segmentSize;
+	}
+
+	private Segment nextSegment() throws IOException {
+		if (current != null && current.liveRecords == 0) {
+			current.position = 0;
+			return current;
+		}
+		Segment segment = freeSegments.poll();
+		if (segment != null) {
+			return segment;
+		}
+		if (file == null) {
+			File spill = File.createTempFile("multiscope-", ".spill", directory);
+			spill.deleteOnExit();
+			file = new RandomAccessFile(spill, "rw");
+		}
+		MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, (long) segments.size() * segmentSize, segmentSize);
+		segment = new Segment(buffer);
+		segments.add(segment);
+		return segment;
+	}
+
+	private static final class Segment {
+		final MappedByteBuffer buffer;
+		// guarded by the spill file
+		int position = 0;
+		int liveRecords = 0;
+
+		Segment(MappedByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+
+	static final class Record {
+		final Segment segment;
+		final int offset;
+		final int length;
+
+		Record(Segment segment, int offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.scopes;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.ConfigurationException;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.ProvisionException;
+import org.protobee.guice.multiscopes.MultiscopeUtils;
+import org.protobee.guice.multiscopes.ScopeInstance;
+import org.protobee.guice.multiscopes.ScopedKey;
+import org.protobee.guice.multiscopes.ScopedValues;
+
+import java.lang.annotation.Annotation;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A multiscope with a fixed number of scope instances, the stripes, for objects that are expensive
+ * and not thread safe, like encoders or scratch buffers. A thread entering the scope through
+ * {@link #getStripeEntry()} is put in a stripe no other thread is in, preferring the stripe its
+ * thread id maps to, and only waits when every stripe is taken. So there are at most as many of
+ * each scoped object as there are stripes, and each is used by one thread at a time.
+ * <br/><br/>
+ * A stripe is held from the moment a thread is put in it until the thread is taken out of it, by
+ * exiting, a {@link org.protobee.guice.multiscopes.util.Descoper} or a
+ * {@link org.protobee.guice.multiscopes.util.MultiscopeExitor}. Threads should stay in a stripe
+ * only as long as they use its objects.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public class StripedMultiscope extends SimpleMultiscope {
+
+	private final RealScopeInstance[] stripes;
+	private final ReentrantLock[] locks;
+	private final ScopeInstance stripeEntry = new StripeEntry();
+
+	public StripedMultiscope(Class<? extends Annotation> bindingAnnotation, int stripeCount) {
+		super(bindingAnnotation);
+		Preconditions.checkArgument(stripeCount > 0, "stripe count must be positive");
+		stripes = new RealScopeInstance[stripeCount];
+		locks = new ReentrantLock[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = (RealScopeInstance) createScopeInstance(MultiscopeUtils.createDefaultScopeMap());
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * @return the scope instance that puts the calling thread in a free stripe when entered. Putting
+	 * objects in it puts them in every stripe.
+	 */
+	public ScopeInstance getStripeEntry() {
+		return stripeEntry;
+	}
+
+	public int getStripeCount() {
+		return stripes.length;
+	}
+
+	@Override void entering(RealScopeInstance instance) {
+		lockOf(instance).lock();
+	}
+
+	@Override void exited(RealScopeInstance instance) {
+		lockOf(instance).unlock();
+	}
+
+	private ReentrantLock lockOf(RealScopeInstance instance) {
+		int stripe = instance.getInstanceId();
+		Preconditions.checkArgument(stripe < stripes.length && stripes[stripe] == instance, "%s is not a stripe of %s", instance, this);
+		return locks[stripe];
+	}
+
+	private RealScopeInstance chooseStripe() {
+		int home = (int) (Thread.currentThread().getId() % stripes.length);
+		for (int i = 0; i < stripes.length; i++) {
+			int stripe = (home + i) % stripes.length;
+			if (!locks[stripe].isLocked()) {
+				return stripes[stripe];
+			}
+		}
+		return stripes[home];
+	}
+
+	private class StripeEntry implements ScopeInstance {
+
+		@Override public void enterScope() throws IllegalStateException {
+			// the stripe can be taken in between, then entering waits for it
+			chooseStripe().enterScope();
+		}
+
+		@Override public boolean isInScope() {
+			return StripedMultiscope.this.isInScope();
+		}
+
+		@Override public void exitScope() {
+			StripedMultiscope.this.exitScope();
+		}
+
+		@Override public void putInScope(Key<?> key, Object object) throws IllegalArgumentException {
+			for (RealScopeInstance stripe : stripes) {
+				stripe.putInScope(key, object);
+			}
+		}
+
+		@Override public <T> void putInScope(ScopedKey<T> key, T object) {
+			for (RealScopeInstance stripe : stripes) {
+				stripe.putInScope(key, object);
+			}
+		}
+
+		@Override public void seed(ScopedValues values) {
+			for (RealScopeInstance stripe : stripes) {
+				stripe.seed(values);
+			}
+		}
+
+		/**
+		 * Gets the object from the stripe the thread is in, or from a free stripe it's put in for the
+		 * duration of the call.
+		 */
+		@Override public <T> T get(Key<T> key) throws ProvisionException, ConfigurationException {
+			RealScopeInstance current = ScopeContext.current().get(ordinal);
+			return (current != null ? current : chooseStripe()).get(key);
+		}
+
+		@Override public <T> T get(Class<T> type) throws ProvisionException, ConfigurationException {
+			return get(Key.get(type));
+		}
+
+		@Override public <T> T tryGet(Key<T> key) {
+			return StripedMultiscope.this.tryGet(key);
+		}
+
+		@Override public boolean isPresent(Key<?> key) {
+			return StripedMultiscope.this.isPresent(key);
+		}
+
+		/**
+		 * Closes every stripe.
+		 */
+		@Override public void close() {
+			for (RealScopeInstance stripe : stripes) {
+				stripe.close();
+			}
+		}
+
+		@Override public boolean isClosed() {
+			return stripes[0].isClosed();
+		}
+
+		/**
+		 * Closes every stripe once it's drained.
+		 */
+		@Override public void closeWhenDrained() {
+			for (RealScopeInstance stripe : stripes) {
+				stripe.closeWhenDrained();
+			}
+		}
+
+		/**
+		 * @return the number of threads in all the stripes
+		 */
+		@Override public int getActiveThreads() {
+			int activeThreads = 0;
+			for (RealScopeInstance stripe : stripes) {
+				activeThreads += stripe.getActiveThreads();
+			}
+			return activeThreads;
+		}
+
+		/**
+		 * Freezes every stripe.
+		 */
+		@Override public void freeze() {
+			for (RealScopeInstance stripe : stripes) {
+				stripe.freeze();
+			}
+		}
+
+		@Override public boolean isFrozen() {
+			return stripes[0].isFrozen();
+		}
+
+		/**
+		 * Stripes are interchangeable, so there's no one instance to layer on.
+		 */
+		@Override public ScopeInstance newLayer() {
+			throw new UnsupportedOperationException("Striped multiscopes can't be layered");
+		}
+
+		@Override public ScopeInstance getParentLayer() {
+			return null;
+		}
+
+		/**
+		 * @return -1, the entry isn't an instance itself
+		 */
+		@Override public int getInstanceId() {
+			return -1;
+		}
+
+		@Override public String toString() {
+			return StripedMultiscope.this + "-StripeEntry";
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.scopes;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.protobee.guice.multiscopes.MultiscopeUtils;
+import org.protobee.guice.multiscopes.ScopeInstance;
+
+import java.lang.annotation.Annotation;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * A multiscope where every thread is implicitly in its own scope instance, like a
+ * {@link ThreadLocal}, without entering or exiting. The instance of a thread is created when the
+ * thread first gets a scoped object, and is closed (see {@link ScopeInstance#close()}) once the
+ * thread has terminated. Threads are only held weakly: the instances of threads that have been
+ * garbage collected are closed the next time any thread is put in its own instance, which happens
+ * on its first scoped injection and after it entered or exited another instance, and on
+ * {@link #getThreadInstance()} and {@link #getThreadCount()}. The instances of terminated threads
+ * can be closed explicitly with {@link #closeTerminatedThreads()}. {@link #closeAll()}
+ * closes the instances of all threads, for when a thread pool is shut down.
+ * <br/><br/>
+ * A thread can still enter another instance of the scope, or exit its own, in which case the next
+ * scoped injection puts it back in its own instance. The same happens when the instance it's in is
+ * closed.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public class ThreadMultiscope extends SimpleMultiscope {
+
+	private final ThreadLocal<ThreadInstance> threadInstances = new ThreadLocal<ThreadInstance>();
+	private final Set<ThreadInstance> instances = Sets.newSetFromMap(Maps.<ThreadInstance, Boolean>newConcurrentMap());
+	private final ReferenceQueue<Thread> collectedThreads = new ReferenceQueue<Thread>();
+
+	public ThreadMultiscope(Class<? extends Annotation> bindingAnnotation) {
+		super(bindingAnnotation);
+	}
+
+	/**
+	 * @return the instance of the calling thread, which is created if needed
+	 */
+	public ScopeInstance getThreadInstance() {
+		return currentInstance();
+	}
+
+	/**
+	 * @return the number of threads that have an open instance
+	 */
+	public int getThreadCount() {
+		closeCollectedThreads();
+		return instances.size();
+	}
+
+	@Override RealScopeInstance implicitInstance(ScopeContext context) {
+		RealScopeInstance instance = currentInstance();
+		context.set(ordinal, instance);
+		return instance;
+	}
+
+	@Override boolean isImplicitInstance(RealScopeInstance instance) {
+		ThreadInstance current = threadInstances.get();
+		return current != null && current.instance == instance;
+	}
+
+	/**
+	 * Threads are always in this scope, see {@link #implicitInstance(ScopeContext)}.
+	 */
+	@Override public boolean isInScope() {
+		return true;
+	}
+
+	private RealScopeInstance currentInstance() {
+		closeCollectedThreads();
+		ThreadInstance current = threadInstances.get();
+		if (current != null && !current.instance.isClosed()) {
+			return current.instance;
+		}
+		if (current != null) {
+			instances.remove(current);
+		}
+		RealScopeInstance instance = (RealScopeInstance) createScopeInstance(MultiscopeUtils.createDefaultScopeMap());
+		current = new ThreadInstance(Thread.currentThread(), instance, collectedThreads);
+		instances.add(current);
+		threadInstances.set(current);
+		return instance;
+	}
+
+	/**
+	 * Closes the instances of the threads that have been garbage collected. Cheap when there are
+	 * none, as it only polls the reference queue.
+	 */
+	private int closeCollectedThreads() {
+		int closed = 0;
+		Reference<? extends Thread> collected;
+		while ((collected = collectedThreads.poll()) != null) {
+			ThreadInstance threadInstance = (ThreadInstance) collected;
+			if (instances.remove(threadInstance)) {
+				threadInstance.instance.close();
+				closed++;
+			}
+		}
+		return closed;
+	}
+
+	/**
+	 * Closes the instances of the threads that have terminated, including those that are still
+	 * referenced and so haven't been garbage collected.
+	 *
+	 * @return the number of instances closed
+	 */
+	public int closeTerminatedThreads() {
+		int closed = closeCollectedThreads();
+		for (Iterator<ThreadInstance> it = instances.iterator(); it.hasNext(); ) {
+			ThreadInstance threadInstance = it.next();
+			Thread thread = threadInstance.get();
+			if (thread == null || !thread.isAlive()) {
+				it.remove();
+				threadInstance.instance.close();
+				closed++;
+			}
+		}
+		return closed;
+	}
+
+	/**
+	 * Closes the instances of all threads. Threads that get scoped objects afterwards get new
+	 * instances.
+	 */
+	public void closeAll() {
+		for (Iterator<ThreadInstance> it = instances.iterator(); it.hasNext(); ) {
+			ThreadInstance threadInstance = it.next();
+			it.remove();
+			threadInstance.instance.close();
+		}
+	}
+
+	/**
+	 * The instance of a thread, which doesn't keep the thread from being collected.
+	 */
+	private static final class ThreadInstance extends WeakReference<Thread> {
+		final RealScopeInstance instance;
+
+		ThreadInstance(Thread thread, RealScopeInstance instance, ReferenceQueue<Thread> queue) {
+			super(thread, queue);
+			this.instance = instance;
+		}
+	}
+}
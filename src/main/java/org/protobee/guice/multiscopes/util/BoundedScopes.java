@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.protobee.guice.multiscopes.ScopeInstance;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs work inside every instance of a multiscope in parallel, like the {@link Set} of
+ * {@link ScopeInstance}s bound by a {@link org.protobee.guice.multiscopes.BoundedMultiscopeBinder}.
+ * Each instance is entered on the executor thread that runs its task, and exited when the task is
+ * done, so the executor threads must not be in the multiscope already.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public final class BoundedScopes {
+
+	/**
+	 * Combines the result of one instance into the accumulated result.
+	 */
+	public interface Reducer<T, R> {
+		R reduce(R accumulated, T value);
+	}
+
+	private BoundedScopes() {
+	}
+
+	/**
+	 * Runs the task inside every instance, in parallel on the executor, and waits for all of them.
+	 *
+	 * @throws ExecutionException if a task failed. The tasks that didn't start yet are cancelled.
+	 */
+	public static void forEachParallel(Set<ScopeInstance> instances, final Runnable task, Executor executor) throws InterruptedException, ExecutionException {
+		Preconditions.checkNotNull(task, "task");
+		mapReduce(instances, new Callable<Void>() {
+			@Override public Void call() {
+				task.run();
+				return null;
+			}
+		}, null, new Reducer<Void, Void>() {
+			@Override public Void reduce(Void accumulated, Void value) {
+				return null;
+			}
+		}, executor);
+	}
+
+	/**
+	 * Calls the mapper inside every instance, in parallel on the executor, and reduces the results
+	 * on the calling thread in the order they complete. Results are reduced as they come in instead
+	 * of being collected first, so the reducer must not depend on the order of the instances.
+	 *
+	 * @param identity the result of reducing no instances
+	 * @throws ExecutionException if a mapper failed. The mappers that didn't start yet are
+	 *                            cancelled.
+	 */
+	public static <T, R> R mapReduce(Set<ScopeInstance> instances, Callable<T> mapper, R identity, Reducer<? super T, R> reducer, Executor executor) throws InterruptedException, ExecutionException {
+		Preconditions.checkNotNull(instances, "instances");
+		Preconditions.checkNotNull(mapper, "mapper");
+		Preconditions.checkNotNull(reducer, "reducer");
+		Preconditions.checkNotNull(executor, "executor");
+		CompletionService<T> completion = new ExecutorCompletionService<T>(executor);
+		List<Future<T>> futures = Lists.newArrayListWithCapacity(instances.size());
+		try {
+			for (ScopeInstance instance : instances) {
+				futures.add(completion.submit(inScope(instance, mapper)));
+			}
+			R result = identity;
+			for (int i = 0; i < futures.size(); i++) {
+				result = reducer.reduce(result, completion.take().get());
+			}
+			return result;
+		} finally {
+			// only the unfinished tasks are affected, when a task failed or the thread was interrupted
+			for (Future<T> future : futures) {
+				future.cancel(false);
+			}
+		}
+	}
+
+	private static <T> Callable<T> inScope(final ScopeInstance instance, final Callable<T> mapper) {
+		return new Callable<T>() {
+			@Override public T call() throws Exception {
+				instance.enterScope();
+				try {
+					return mapper.call();
+				} finally {
+					instance.exitScope();
+				}
+			}
+		};
+	}
+}
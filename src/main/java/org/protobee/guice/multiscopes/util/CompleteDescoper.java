@@ -20,37 +20,83 @@
  ******************************************************************************/
 package org.protobee.guice.multiscopes.util;
 
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
 import org.protobee.guice.multiscopes.Multiscope;
+import org.protobee.guice.multiscopes.ScopeInstance;
+import org.protobee.guice.multiscopes.scopes.ScopeContext;
 
+import java.util.BitSet;
+import java.util.List;
 import java.util.Set;
 
 /**
- * This {@link Descoper} applies to all {@link Multiscope}s.
+ * This {@link Descoper} applies to all {@link Multiscope}s. Descoping takes a snapshot of the
+ * instances the thread has entered in the {@link ScopeContext} and rescoping enters only those
+ * again, so both cost as much as the number of entered instances, not the number of multiscopes.
+ * Instances the thread is in implicitly, like its instance of a
+ * {@link org.protobee.guice.multiscopes.scopes.ThreadMultiscope}, are left entered.
  *
  * @author Daniel
  */
 public class CompleteDescoper implements Descoper {
 
-	private final Descoper[] descopers;
+	private final BitSet ordinals;
+	// keeps the multiscopes of the ordinals from being collected, which would free the ordinals
+	private final Set<Multiscope> multiscopes;
+	private final Descoper[] otherDescopers;
+	private final ScopeInstance[] descoped;
+	private int descopedCount = 0;
+	private boolean isDescoped = false;
 
-	@Inject public CompleteDescoper(Set<Descoper> descopers) {
-		this.descopers = new Descoper[descopers.size()];
-		int i = 0;
-		for (Descoper descoper : descopers) {
-			this.descopers[i++] = descoper;
+	@Inject public CompleteDescoper(Set<Multiscope> multiscopes, Injector injector) {
+		this.multiscopes = multiscopes;
+		this.ordinals = ScopeContext.ordinalsOf(multiscopes);
+		this.descoped = new ScopeInstance[ordinals.cardinality()];
+		List<Descoper> others = Lists.newArrayList();
+		for (Multiscope scope : multiscopes) {
+			if (ScopeContext.ordinalOf(scope) == -1) {
+				others.add(injector.getInstance(Key.get(Descoper.class, scope.getBindingAnnotation())));
+			}
 		}
+		this.otherDescopers = others.toArray(new Descoper[others.size()]);
 	}
 
 	@Override public void descope() throws IllegalStateException {
-		for (Descoper descoper : descopers) {
+		if (isDescoped) {
+			throw new IllegalStateException("Can't call descope() twice in a row, must call rescope() first.");
+		}
+		ScopeContext context = ScopeContext.current();
+		for (int i = context.getEnteredCount() - 1; i >= 0; i--) {
+			int ordinal = context.getEnteredOrdinal(i);
+			// instances a thread is in implicitly would come back on their own, so they stay
+			if (ordinals.get(ordinal) && !context.isImplicit(i)) {
+				descoped[descopedCount++] = context.exit(ordinal);
+			}
+		}
+		for (Descoper descoper : otherDescopers) {
 			descoper.descope();
 		}
+		isDescoped = true;
 	}
 
 	@Override public void rescope() throws IllegalStateException {
-		for (Descoper descoper : descopers) {
+		ScopeContext context = ScopeContext.current();
+		for (int i = 0; i < context.getEnteredCount(); i++) {
+			if (ordinals.get(context.getEnteredOrdinal(i)) && !context.isImplicit(i)) {
+				throw new IllegalStateException("Cannot rescope when we're already in " + context.getEntered(i));
+			}
+		}
+		for (Descoper descoper : otherDescopers) {
 			descoper.rescope();
 		}
+		while (descopedCount > 0) {
+			ScopeInstance instance = descoped[--descopedCount];
+			descoped[descopedCount] = null;
+			instance.enterScope();
+		}
+		isDescoped = false;
 	}
 }
@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Key;
+import org.protobee.guice.multiscopes.ScopeSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * A {@link ScopeSerializer} using Java serialization, for the {@link Serializable} objects of the
+ * keys it's given. Passivation replaces an object with a copy, so keys are opted in one by one
+ * instead of passivating everything that happens to be serializable.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public class JavaScopeSerializer implements ScopeSerializer {
+
+	private final ImmutableSet<Key<?>> keys;
+
+	/**
+	 * @throws IllegalArgumentException if no keys are given
+	 */
+	public JavaScopeSerializer(Key<?>... keys) {
+		this.keys = ImmutableSet.copyOf(keys);
+		Preconditions.checkArgument(!this.keys.isEmpty(), "no keys to passivate");
+	}
+
+	@Override public boolean canSerialize(Key<?> key, Object value) {
+		return value instanceof Serializable && keys.contains(key);
+	}
+
+	@Override public byte[] serialize(Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(value);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	@Override public Object deserialize(byte[] bytes) throws IOException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Class of a passivated object is missing", e);
+		} finally {
+			in.close();
+		}
+	}
+}
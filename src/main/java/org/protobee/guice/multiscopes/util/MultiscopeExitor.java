@@ -20,9 +20,13 @@
  ******************************************************************************/
 package org.protobee.guice.multiscopes.util;
 
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import org.protobee.guice.multiscopes.Multiscope;
+import org.protobee.guice.multiscopes.scopes.ScopeContext;
 
+import java.util.BitSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -35,14 +39,30 @@ import java.util.Set;
  */
 public class MultiscopeExitor {
 
+	private final BitSet ordinals;
+	// keeps the multiscopes of the ordinals from being collected, which would free the ordinals
 	private final Set<Multiscope> multiscopes;
+	private final Multiscope[] otherMultiscopes;
 
 	@Inject public MultiscopeExitor(Set<Multiscope> multiscopes) {
 		this.multiscopes = multiscopes;
+		this.ordinals = ScopeContext.ordinalsOf(multiscopes);
+		List<Multiscope> others = Lists.newArrayList();
+		for (Multiscope scope : multiscopes) {
+			if (ScopeContext.ordinalOf(scope) == -1) {
+				others.add(scope);
+			}
+		}
+		this.otherMultiscopes = others.toArray(new Multiscope[others.size()]);
 	}
 
+	/**
+	 * Exits all multiscopes on the current thread. Only the multiscopes that are actually entered
+	 * are touched.
+	 */
 	public void exitAllScopes() {
-		for (Multiscope scope : multiscopes) {
+		ScopeContext.current().exitAll(ordinals);
+		for (Multiscope scope : otherMultiscopes) {
 			scope.exitScope();
 		}
 	}
@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.protobee.guice.multiscopes.ScopeInstance;
+import org.protobee.guice.multiscopes.scopes.ScopeContextThread;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks inside scope instances, where all the tasks for one scope instance run on the same
+ * worker thread. The instance id is hashed onto a fixed set of workers, so objects scoped to an
+ * instance are only ever touched by one thread and need no locking.
+ * <br/><br/>
+ * A worker enters the scope instance of a task and stays in it while the following queued tasks are
+ * for the same instance. It exits the instance when the next task is for another instance or when
+ * its queue runs empty, so idle workers don't keep instances entered. Tasks for a closed instance
+ * are not run.
+ * <br/><br/>
+ * Exceptions thrown by tasks given to {@link #execute(ScopeInstance, Runnable)} go to the
+ * {@link Thread.UncaughtExceptionHandler} of the worker, and the worker keeps running. Workers only
+ * exit after {@link #shutdown()}; interrupting them only interrupts the task they're running.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public class ScopeAffinityExecutor {
+
+	private static final AffinityTask SHUTDOWN = new AffinityTask(null, null, null);
+
+	private final Worker[] workers;
+	private volatile boolean shutdown = false;
+
+	/**
+	 * Creates and starts an executor with the given number of workers.
+	 */
+	public ScopeAffinityExecutor(int workerCount) {
+		this(workerCount, "scope-affinity-");
+	}
+
+	/**
+	 * Creates and starts an executor with the given number of workers, which are named with the
+	 * given prefix and their index.
+	 */
+	public ScopeAffinityExecutor(int workerCount, String namePrefix) {
+		Preconditions.checkArgument(workerCount > 0, "Worker count must be positive, was %s", workerCount);
+		Preconditions.checkNotNull(namePrefix, "namePrefix");
+		workers = new Worker[workerCount];
+		for (int i = 0; i < workerCount; i++) {
+			workers[i] = new Worker(namePrefix + i);
+		}
+		for (Worker worker : workers) {
+			worker.start();
+		}
+	}
+
+	/**
+	 * @return the index of the worker that runs the tasks of the given scope instance
+	 */
+	public int workerOf(ScopeInstance instance) {
+		return (instance.getInstanceId() & Integer.MAX_VALUE) % workers.length;
+	}
+
+	public int getWorkerCount() {
+		return workers.length;
+	}
+
+	/**
+	 * Runs the task inside the given scope instance, on the worker of that instance.
+	 *
+	 * @throws RejectedExecutionException if the executor is shut down
+	 */
+	public void execute(ScopeInstance instance, Runnable task) throws RejectedExecutionException {
+		Preconditions.checkNotNull(instance, "instance");
+		Preconditions.checkNotNull(task, "task");
+		enqueue(new AffinityTask(instance, task, null));
+	}
+
+	/**
+	 * Calls the callable inside the given scope instance, on the worker of that instance. The future
+	 * fails with an {@link IllegalStateException} if the instance is closed before the callable runs.
+	 *
+	 * @throws RejectedExecutionException if the executor is shut down
+	 */
+	public <T> ListenableFuture<T> submit(ScopeInstance instance, final Callable<T> callable) throws RejectedExecutionException {
+		Preconditions.checkNotNull(instance, "instance");
+		Preconditions.checkNotNull(callable, "callable");
+		final SettableFuture<T> future = SettableFuture.create();
+		enqueue(new AffinityTask(instance, new Runnable() {
+			@Override public void run() {
+				if (future.isDone()) {
+					return;
+				}
+				try {
+					future.set(callable.call());
+				} catch (Throwable e) {
+					future.setException(e);
+				}
+			}
+		}, future));
+		return future;
+	}
+
+	/**
+	 * @return an {@link Executor} that runs all its tasks inside the given scope instance
+	 */
+	public Executor executorFor(final ScopeInstance instance) {
+		Preconditions.checkNotNull(instance, "instance");
+		return new Executor() {
+			@Override public void execute(Runnable command) {
+				ScopeAffinityExecutor.this.execute(instance, command);
+			}
+		};
+	}
+
+	/**
+	 * Stops accepting tasks. The workers finish the tasks already queued and then exit.
+	 */
+	public void shutdown() {
+		synchronized (workers) {
+			if (shutdown) {
+				return;
+			}
+			shutdown = true;
+			for (Worker worker : workers) {
+				worker.queue.add(SHUTDOWN);
+			}
+		}
+	}
+
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	/**
+	 * Waits for the workers to exit after a {@link #shutdown()}.
+	 *
+	 * @return true if all the workers exited within the timeout
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (Worker worker : workers) {
+			long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remainingMillis > 0) {
+				worker.join(remainingMillis);
+			}
+			if (worker.isAlive()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void enqueue(AffinityTask task) {
+		if (shutdown) {
+			throw new RejectedExecutionException("Scope affinity executor is shut down");
+		}
+		Worker worker = workers[workerOf(task.instance)];
+		// checked again under the lock, so no task is queued behind the shutdown marker
+		synchronized (workers) {
+			if (shutdown) {
+				throw new RejectedExecutionException("Scope affinity executor is shut down");
+			}
+			worker.queue.add(task);
+		}
+	}
+
+	private static final class AffinityTask {
+		final ScopeInstance instance;
+		final Runnable runnable;
+		final SettableFuture<?> future;
+
+		AffinityTask(ScopeInstance instance, Runnable runnable, SettableFuture<?> future) {
+			this.instance = instance;
+			this.runnable = runnable;
+			this.future = future;
+		}
+	}
+
+	private static final class Worker extends ScopeContextThread {
+		final BlockingQueue<AffinityTask> queue = new LinkedBlockingQueue<AffinityTask>();
+
+		Worker(String name) {
+			super(name);
+		}
+
+		@Override public void run() {
+			ScopeInstance entered = null;
+			try {
+				while (true) {
+					AffinityTask task = queue.poll();
+					if (task == null) {
+						if (entered != null) {
+							entered.exitScope();
+							entered = null;
+						}
+						try {
+							task = queue.take();
+						} catch (InterruptedException e) {
+							// only shutdown() stops a worker
+							continue;
+						}
+					}
+					if (task == SHUTDOWN) {
+						return;
+					}
+					// a task may have exited the scope itself
+					if (task.instance != entered || !entered.isInScope()) {
+						if (entered != null) {
+							entered.exitScope();
+							entered = null;
+						}
+						try {
+							task.instance.enterScope();
+						} catch (IllegalStateException e) {
+							report(task, e);
+							continue;
+						}
+						entered = task.instance;
+					}
+					try {
+						task.runnable.run();
+					} catch (Throwable e) {
+						report(task, e);
+					}
+					// like ThreadPoolExecutor, the interrupt of a task isn't left for the next one
+					Thread.interrupted();
+				}
+			} finally {
+				if (entered != null) {
+					entered.exitScope();
+				}
+			}
+		}
+
+		private void report(AffinityTask task, Throwable e) {
+			if (task.future != null) {
+				task.future.setException(e);
+				return;
+			}
+			Thread.UncaughtExceptionHandler handler = getUncaughtExceptionHandler();
+			if (handler != null) {
+				handler.uncaughtException(this, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.util;
+
+import com.google.common.base.Preconditions;
+import org.protobee.guice.multiscopes.ScopeInstance;
+import org.protobee.guice.multiscopes.scopes.ScopeContext;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds scopes that tasks leave entered on pooled threads. A forgotten
+ * {@link ScopeInstance#exitScope()} keeps the instance and all its objects reachable from the
+ * worker thread, and makes the next task on that thread run in it.
+ * <br/><br/>
+ * Tasks wrapped by the detector are checked when they end: every scope instance entered on the
+ * thread that wasn't entered when the task started is reported to the {@link LeakListener} and
+ * exited. Instances the thread is in implicitly, like its own instance of a
+ * {@link org.protobee.guice.multiscopes.scopes.ThreadMultiscope}, aren't leaks. While a wrapped task runs, every n-th scope enter on its thread records its stack trace
+ * (see {@link ScopeContext#setEnterSiteSampling(int)}), so most leaks are reported with where the
+ * scope was entered without taking a stack trace on every enter.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public class ScopeLeakDetector {
+
+	/**
+	 * Gets the scope instances that tasks left entered.
+	 */
+	public interface LeakListener {
+		/**
+		 * Called on the thread of the task, before the instance is exited.
+		 *
+		 * @param enterSite the stack trace of where the instance was entered, or null if that enter
+		 *                  wasn't sampled
+		 */
+		void leaked(ScopeInstance instance, @Nullable Throwable enterSite);
+	}
+
+	private static final Logger logger = Logger.getLogger(ScopeLeakDetector.class.getName());
+	private static final ScopeInstance[] NONE_ENTERED = new ScopeInstance[0];
+
+	private final int sampleRate;
+	private final LeakListener listener;
+	private final StripedCounter leaks = new StripedCounter();
+
+	/**
+	 * Creates a detector that logs the leaks as warnings.
+	 *
+	 * @param sampleRate record the stack trace of every sampleRate-th enter, or 0 for none
+	 */
+	public ScopeLeakDetector(int sampleRate) {
+		this(sampleRate, new LeakListener() {
+			@Override public void leaked(ScopeInstance instance, @Nullable Throwable enterSite) {
+				logger.log(Level.WARNING, "Task left " + instance + " entered on thread " + Thread.currentThread().getName() + ", exiting it", enterSite);
+			}
+		});
+	}
+
+	/**
+	 * @param sampleRate record the stack trace of every sampleRate-th enter, or 0 for none
+	 */
+	public ScopeLeakDetector(int sampleRate, LeakListener listener) {
+		Preconditions.checkArgument(sampleRate >= 0, "sampleRate must not be negative");
+		this.sampleRate = sampleRate;
+		this.listener = Preconditions.checkNotNull(listener, "listener");
+	}
+
+	/**
+	 * @return the number of leaked scope instances found so far, for alerting
+	 */
+	public long getLeakCount() {
+		return leaks.sum();
+	}
+
+	public Runnable wrap(final Runnable task) {
+		Preconditions.checkNotNull(task, "task");
+		return new Runnable() {
+			@Override public void run() {
+				ScopeContext context = ScopeContext.current();
+				ScopeInstance[] enteredBefore = entered(context);
+				int previousSampling = context.setEnterSiteSampling(sampleRate);
+				try {
+					task.run();
+				} finally {
+					context.setEnterSiteSampling(previousSampling);
+					exitLeaked(context, enteredBefore);
+				}
+			}
+		};
+	}
+
+	public <T> Callable<T> wrap(final Callable<T> task) {
+		Preconditions.checkNotNull(task, "task");
+		return new Callable<T>() {
+			@Override public T call() throws Exception {
+				ScopeContext context = ScopeContext.current();
+				ScopeInstance[] enteredBefore = entered(context);
+				int previousSampling = context.setEnterSiteSampling(sampleRate);
+				try {
+					return task.call();
+				} finally {
+					context.setEnterSiteSampling(previousSampling);
+					exitLeaked(context, enteredBefore);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return an executor that wraps every task before giving it to the given executor
+	 */
+	public Executor wrap(final Executor executor) {
+		Preconditions.checkNotNull(executor, "executor");
+		return new Executor() {
+			@Override public void execute(Runnable command) {
+				executor.execute(wrap(command));
+			}
+		};
+	}
+
+	/**
+	 * Reports and exits every scope instance entered on the current thread. For threads that should
+	 * be out of all scopes, like a pool thread between tasks.
+	 *
+	 * @return the number of leaked instances
+	 */
+	public int checkCurrentThread() {
+		return exitLeaked(ScopeContext.current(), NONE_ENTERED);
+	}
+
+	private static ScopeInstance[] entered(ScopeContext context) {
+		int count = context.getEnteredCount();
+		if (count == 0) {
+			return NONE_ENTERED;
+		}
+		ScopeInstance[] entered = new ScopeInstance[count];
+		for (int i = 0; i < count; i++) {
+			entered[i] = context.getEntered(i);
+		}
+		return entered;
+	}
+
+	private int exitLeaked(ScopeContext context, ScopeInstance[] enteredBefore) {
+		int leaked = 0;
+		// exiting moves the last entered instance to the exited index, which was already checked
+		for (int i = context.getEnteredCount() - 1; i >= 0; i--) {
+			ScopeInstance instance = context.getEntered(i);
+			if (contains(enteredBefore, instance) || context.isImplicit(i)) {
+				continue;
+			}
+			leaked++;
+			leaks.increment();
+			try {
+				listener.leaked(instance, context.getEnterSite(i));
+			} finally {
+				instance.exitScope();
+			}
+		}
+		return leaked;
+	}
+
+	private static boolean contains(ScopeInstance[] instances, ScopeInstance instance) {
+		for (ScopeInstance entered : instances) {
+			if (entered == instance) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A counter that's spread over a number of cells once threads contend on it, so threads that update
+ * it at the same time mostly touch different cache lines. Until the first contended update the
+ * counter is a single field, so uncontended counters stay small. After that each thread updates
+ * the cell picked by its thread id, and reads add up all the cells. Reads are slower than updates,
+ * so this fits counters that are updated on hot paths and read for checks or monitoring.
+ * <br/><br/>
+ * Updates and reads are volatile. If two threads each increment and then read the counter, at
+ * least one of them sees both increments.
+ *
+ * @author Daniel Murphy (daniel@dmurph.com)
+ */
+public final class StripedCounter {
+
+	// 8 longs per cell keep two cells from sharing a 64 byte cache line
+	private static final int SPACING = 8;
+	private static final int CELLS;
+
+	static {
+		int cells = 1;
+		while (cells < Runtime.getRuntime().availableProcessors() * 2) {
+			cells <<= 1;
+		}
+		CELLS = cells;
+	}
+
+	private static final AtomicLongFieldUpdater<StripedCounter> baseUpdater = AtomicLongFieldUpdater.newUpdater(StripedCounter.class, "base");
+
+	private volatile long base = 0;
+	private volatile AtomicLongArray cells = null;
+
+	public void increment() {
+		add(1);
+	}
+
+	public void decrement() {
+		add(-1);
+	}
+
+	public void add(long delta) {
+		AtomicLongArray cells = this.cells;
+		if (cells == null) {
+			long base = this.base;
+			if (baseUpdater.compareAndSet(this, base, base + delta)) {
+				return;
+			}
+			cells = inflate();
+		}
+		cells.getAndAdd(cellIndex(), delta);
+	}
+
+	/**
+	 * @return the sum of all the cells
+	 */
+	public long sum() {
+		long sum = base;
+		AtomicLongArray cells = this.cells;
+		if (cells != null) {
+			for (int i = 0; i < CELLS; i++) {
+				sum += cells.get(i * SPACING);
+			}
+		}
+		return sum;
+	}
+
+	@Override public String toString() {
+		return Long.toString(sum());
+	}
+
+	private synchronized AtomicLongArray inflate() {
+		if (cells == null) {
+			cells = new AtomicLongArray(CELLS * SPACING);
+		}
+		return cells;
+	}
+
+	private static int cellIndex() {
+		long id = Thread.currentThread().getId();
+		// mixes the id so that threads created together spread over the cells
+		int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return ((hash >>> 16) & (CELLS - 1)) * SPACING;
+	}
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.benchmark;
+
+import com.google.inject.*;
+import org.protobee.guice.multiscopes.BoundedMultiscopeBinder;
+import org.protobee.guice.multiscopes.BoundedMultiscopeBinder.InstancePrescoper;
+import org.protobee.guice.multiscopes.Multiscopes;
+
+import java.lang.annotation.*;
+
+// measures injector creation for a bounded multiscope against the number of scope instances and
+// the number of prescoped keys per instance
+public class BoundedBootstrapBenchmark {
+
+	private static final int[] INSTANCES = { 10, 50, 200 };
+	private static final int[] KEYS = { 10, 100, 500 };
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		GeneratedTypes types = GeneratedTypes.compile("Instance", max(INSTANCES), max(KEYS));
+		// warm up
+		Guice.createInjector(new BoundedModule(types, 20, 20));
+
+		System.out.printf("%10s %10s %12s%n", "instances", "keys", "ms");
+		for (int instances : INSTANCES) {
+			for (int keys : KEYS) {
+				long best = Long.MAX_VALUE;
+				for (int round = 0; round < ROUNDS; round++) {
+					long start = System.nanoTime();
+					Guice.createInjector(new BoundedModule(types, instances, keys));
+					best = Math.min(best, System.nanoTime() - start);
+				}
+				System.out.printf("%10d %10d %12.1f%n", instances, keys, best / 1000000.0);
+			}
+		}
+	}
+
+	private static int max(int[] values) {
+		int max = 0;
+		for (int value : values) {
+			max = Math.max(max, value);
+		}
+		return max;
+	}
+
+	static class BoundedModule extends AbstractModule {
+		private final GeneratedTypes types;
+		private final int instances;
+		private final int keys;
+
+		BoundedModule(GeneratedTypes types, int instances, int keys) {
+			this.types = types;
+			this.instances = instances;
+			this.keys = keys;
+		}
+
+		@Override protected void configure() {
+			BoundedMultiscopeBinder scopes = Multiscopes.newBoundedBinder(binder(), BenchScope.class, Bench.class);
+			for (int j = 0; j < keys; j++) {
+				Multiscopes.bindAsPrescoped(binder(), BenchScope.class, Bench.class, types.value(j));
+			}
+			for (int i = 0; i < instances; i++) {
+				Class<? extends Annotation> instance = types.annotation("Instance", i);
+				scopes.addInstance(instance);
+				InstancePrescoper prescoper = scopes.prescopeInstance(instance);
+				for (int j = 0; j < keys; j++) {
+					prescoper.addInstanceObject(bindValue(types.value(j), instance));
+				}
+			}
+		}
+
+		private <T> Key<T> bindValue(Class<T> type, Class<? extends Annotation> instance) {
+			Key<T> key = Key.get(type, instance);
+			try {
+				bind(key).toInstance(type.newInstance());
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+			return key;
+		}
+	}
+
+	@Retention(RetentionPolicy.RUNTIME) @Target({ ElementType.FIELD, ElementType.PARAMETER, ElementType.METHOD }) @BindingAnnotation public static @interface Bench {
+	}
+
+	@Target({ ElementType.TYPE, ElementType.METHOD }) @Retention(RetentionPolicy.RUNTIME) @ScopeAnnotation public static @interface BenchScope {
+	}
+}
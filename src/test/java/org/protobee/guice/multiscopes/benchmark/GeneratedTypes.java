@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.benchmark;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.util.List;
+
+// compiles the binding annotations and value classes the benchmarks need in bulk, so benchmarks
+// can bind hundreds of scope instances and keys. Needs a JDK.
+public class GeneratedTypes {
+
+	private static final String PACKAGE = "org.protobee.guice.multiscopes.benchmark.generated";
+
+	private final ClassLoader loader;
+
+	private GeneratedTypes(ClassLoader loader) {
+		this.loader = loader;
+	}
+
+	/**
+	 * Compiles binding annotations named {@code prefix0} to {@code prefix(annotations - 1)} and value
+	 * classes named {@code Value0} to {@code Value(values - 1)}.
+	 */
+	public static GeneratedTypes compile(String prefix, int annotations, int values) throws IOException {
+		return compile(0, prefix, annotations, values);
+	}
+
+	/**
+	 * Also compiles, for each of the given number of multiscopes, a scope annotation {@code Scope(i)},
+	 * and binding annotations {@code ScopeBinding(i)} and {@code NewScope(i)}.
+	 */
+	public static GeneratedTypes compile(int scopes, String prefix, int annotations, int values) throws IOException {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) {
+			throw new IllegalStateException("The benchmarks need a JDK to generate their types");
+		}
+		File dir = Files.createTempDir();
+		File packageDir = new File(dir, PACKAGE.replace('.', File.separatorChar));
+		packageDir.mkdirs();
+		List<String> args = Lists.newArrayList("-nowarn", "-proc:none", "-d", dir.getPath(), "-cp", System.getProperty("java.class.path"));
+		for (int i = 0; i < annotations; i++) {
+			String name = prefix + i;
+			args.add(write(packageDir, name, "@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) @com.google.inject.BindingAnnotation public @interface " + name + " {}"));
+		}
+		for (int i = 0; i < scopes; i++) {
+			args.add(write(packageDir, "Scope" + i, "@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) @com.google.inject.ScopeAnnotation public @interface Scope" + i + " {}"));
+			args.add(write(packageDir, "ScopeBinding" + i, "@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) @com.google.inject.BindingAnnotation public @interface ScopeBinding" + i + " {}"));
+			args.add(write(packageDir, "NewScope" + i, "@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) @com.google.inject.BindingAnnotation public @interface NewScope" + i + " {}"));
+		}
+		for (int i = 0; i < values; i++) {
+			args.add(write(packageDir, "Value" + i, "public class Value" + i + " {}"));
+		}
+		int result = compiler.run(null, null, null, args.toArray(new String[args.size()]));
+		if (result != 0) {
+			throw new IllegalStateException("Could not compile the generated types");
+		}
+		return new GeneratedTypes(new URLClassLoader(new URL[] { dir.toURI().toURL() }, GeneratedTypes.class.getClassLoader()));
+	}
+
+	private static String write(File packageDir, String name, String body) throws IOException {
+		File file = new File(packageDir, name + ".java");
+		Files.write("package " + PACKAGE + ";\n" + body + "\n", file, Charset.forName("UTF-8"));
+		return file.getPath();
+	}
+
+	@SuppressWarnings("unchecked") public Class<? extends Annotation> annotation(String prefix, int index) {
+		return (Class<? extends Annotation>) load(prefix + index);
+	}
+
+	public Class<?> value(int index) {
+		return load("Value" + index);
+	}
+
+	private Class<?> load(String name) {
+		try {
+			return loader.loadClass(PACKAGE + "." + name);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
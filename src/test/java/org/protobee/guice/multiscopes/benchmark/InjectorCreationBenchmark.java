@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.benchmark;
+
+import com.google.inject.*;
+import org.protobee.guice.multiscopes.BoundedMultiscopeBinder;
+import org.protobee.guice.multiscopes.BoundedMultiscopeBinder.InstancePrescoper;
+import org.protobee.guice.multiscopes.Multiscopes;
+import org.protobee.guice.multiscopes.ScopeInstance;
+import org.protobee.guice.multiscopes.benchmark.BoundedBootstrapBenchmark.Bench;
+import org.protobee.guice.multiscopes.benchmark.BoundedBootstrapBenchmark.BenchScope;
+import org.protobee.guice.multiscopes.util.CompleteDescoper;
+import org.protobee.guice.multiscopes.util.MultiscopeExitor;
+
+import java.lang.annotation.Annotation;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+// builds injectors with N unbounded multiscopes, and a bounded multiscope with M instances and K
+// prescoped keys per instance, in both stages. Reports the build time, the heap retained by the
+// injector and the latency of the first scoped requests.
+public class InjectorCreationBenchmark {
+
+	// { multiscopes, bounded instances, prescoped keys per instance }
+	private static final int[][] CONFIGURATIONS = { { 10, 10, 10 }, { 1000, 10, 10 }, { 10, 1000, 10 }, { 10, 10, 1000 }, { 100, 100, 100 }, { 1000, 1000, 10 } };
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		int maxScopes = 0, maxInstances = 0, maxKeys = 0;
+		for (int[] configuration : CONFIGURATIONS) {
+			maxScopes = Math.max(maxScopes, configuration[0]);
+			maxInstances = Math.max(maxInstances, configuration[1]);
+			maxKeys = Math.max(maxKeys, configuration[2]);
+		}
+		GeneratedTypes types = GeneratedTypes.compile(maxScopes, "Instance", maxInstances, maxKeys + maxScopes);
+		// warm up
+		for (Stage stage : Stage.values()) {
+			if (stage != Stage.TOOL) {
+				run(types, stage, 20, 20, 20);
+			}
+		}
+
+		System.out.printf("%-12s %7s %7s %7s %10s %10s %14s %14s%n", "stage", "scopes", "inst", "keys", "build ms", "heap KB", "1st bounded us", "1st scoped us");
+		for (Stage stage : new Stage[] { Stage.DEVELOPMENT, Stage.PRODUCTION }) {
+			for (int[] configuration : CONFIGURATIONS) {
+				Result best = null;
+				for (int round = 0; round < ROUNDS; round++) {
+					Result result = run(types, stage, configuration[0], configuration[1], configuration[2]);
+					best = best == null ? result : best.min(result);
+				}
+				System.out.printf("%-12s %7d %7d %7d %10.1f %10d %14.1f %14.1f%n", stage, configuration[0], configuration[1], configuration[2], best.buildNanos / 1e6, best.retainedBytes / 1024, best.firstBoundedNanos / 1e3, best.firstScopedNanos / 1e3);
+			}
+		}
+	}
+
+	static Result run(GeneratedTypes types, Stage stage, int scopes, int instances, int keys) {
+		Result result = new Result();
+		Module module = new ConfigurationModule(types, scopes, instances, keys);
+		long heapBefore = usedHeap();
+
+		long start = System.nanoTime();
+		Injector inj = Guice.createInjector(stage, module);
+		result.buildNanos = System.nanoTime() - start;
+		result.retainedBytes = Math.max(0, usedHeap() - heapBefore);
+
+		// the last bounded instance, and an object prescoped in it
+		Class<? extends Annotation> lastInstance = types.annotation("Instance", instances - 1);
+		start = System.nanoTime();
+		ScopeInstance bounded = inj.getInstance(Key.get(ScopeInstance.class, lastInstance));
+		bounded.enterScope();
+		inj.getInstance(Key.get(types.value(keys - 1), Bench.class));
+		bounded.exitScope();
+		result.firstBoundedNanos = System.nanoTime() - start;
+
+		// a new instance of the last unbounded multiscope, and an object scoped in it
+		start = System.nanoTime();
+		ScopeInstance unbounded = inj.getInstance(Key.get(ScopeInstance.class, types.annotation("NewScope", scopes - 1)));
+		unbounded.enterScope();
+		inj.getInstance(types.value(keys + scopes - 1));
+		unbounded.exitScope();
+		result.firstScopedNanos = System.nanoTime() - start;
+
+		inj.getInstance(MultiscopeExitor.class).exitAllScopes();
+		return result;
+	}
+
+	private static long usedHeap() {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	static class Result {
+		long buildNanos;
+		long retainedBytes;
+		long firstBoundedNanos;
+		long firstScopedNanos;
+
+		Result min(Result other) {
+			Result min = new Result();
+			min.buildNanos = Math.min(buildNanos, other.buildNanos);
+			min.retainedBytes = Math.min(retainedBytes, other.retainedBytes);
+			min.firstBoundedNanos = Math.min(firstBoundedNanos, other.firstBoundedNanos);
+			min.firstScopedNanos = Math.min(firstScopedNanos, other.firstScopedNanos);
+			return min;
+		}
+	}
+
+	static class ConfigurationModule extends AbstractModule {
+		private final GeneratedTypes types;
+		private final int scopes;
+		private final int instances;
+		private final int keys;
+
+		ConfigurationModule(GeneratedTypes types, int scopes, int instances, int keys) {
+			this.types = types;
+			this.scopes = scopes;
+			this.instances = instances;
+			this.keys = keys;
+		}
+
+		@Override protected void configure() {
+			for (int i = 0; i < scopes; i++) {
+				Class<? extends Annotation> scope = types.annotation("Scope", i);
+				Multiscopes.newBinder(binder(), scope, types.annotation("ScopeBinding", i), types.annotation("NewScope", i));
+				bind(types.value(keys + i)).in(scope);
+			}
+
+			BoundedMultiscopeBinder bounded = Multiscopes.newBoundedBinder(binder(), BenchScope.class, Bench.class);
+			for (int j = 0; j < keys; j++) {
+				Multiscopes.bindAsPrescoped(binder(), BenchScope.class, Bench.class, types.value(j));
+			}
+			for (int i = 0; i < instances; i++) {
+				Class<? extends Annotation> instance = types.annotation("Instance", i);
+				bounded.addInstance(instance);
+				InstancePrescoper prescoper = bounded.prescopeInstance(instance);
+				for (int j = 0; j < keys; j++) {
+					prescoper.addInstanceObject(bindValue(types.value(j), instance));
+				}
+			}
+			bind(CompleteDescoper.class);
+			bind(MultiscopeExitor.class);
+		}
+
+		private <T> Key<T> bindValue(Class<T> type, Class<? extends Annotation> instance) {
+			Key<T> key = Key.get(type, instance);
+			try {
+				bind(key).toInstance(type.newInstance());
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+			return key;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.benchmark;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CharStreams;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import org.protobee.guice.multiscopes.Multiscope;
+import org.protobee.guice.multiscopes.ScopeInstance;
+import org.protobee.guice.multiscopes.example.ExamplesGuiceModule;
+import org.protobee.guice.multiscopes.example.scoped.Pilot;
+import org.protobee.guice.multiscopes.example.scopes.Fighter;
+import org.protobee.guice.multiscopes.example.scopes.NewFighter;
+
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.List;
+
+// compares the scoped provider with its inline cache against the same provider with the cache
+// turned off, which is run in a second jvm, on the same instance and on workloads that switch
+// instances every call
+public class ScopedProviderBenchmark {
+
+	private static final String PROVIDER_CACHE_PROPERTY = "org.protobee.guice.multiscopes.providerCache";
+	private static final String[] WORKLOADS = { "same instance", "switching" };
+	private static final int ITERATIONS = 10000000;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+		double[] cached = run();
+		if ("false".equals(System.getProperty(PROVIDER_CACHE_PROPERTY))) {
+			// the uncached run of the parent jvm, which reads the results from the output
+			for (double nanos : cached) {
+				System.out.println(nanos);
+			}
+			return;
+		}
+
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		Process baseline = new ProcessBuilder(java, "-D" + PROVIDER_CACHE_PROPERTY + "=false", "-cp", System.getProperty("java.class.path"), ScopedProviderBenchmark.class.getName()).redirectErrorStream(true).start();
+		List<String> lines = CharStreams.readLines(new InputStreamReader(baseline.getInputStream(), Charsets.UTF_8));
+		baseline.waitFor();
+
+		System.out.printf("%-16s %12s %12s %8s%n", "workload", "cached", "uncached", "change");
+		for (int i = 0; i < WORKLOADS.length; i++) {
+			double uncached = Double.parseDouble(lines.get(lines.size() - WORKLOADS.length + i));
+			System.out.printf("%-16s %6.2f ns/op %6.2f ns/op %+7.1f%%%n", WORKLOADS[i], cached[i], uncached, 100 * (cached[i] - uncached) / uncached);
+		}
+	}
+
+	/**
+	 * @return the ns/op of each workload, from the last round
+	 */
+	private static double[] run() {
+		Injector inj = Guice.createInjector(new ExamplesGuiceModule());
+		Multiscope fighterScope = inj.getInstance(Key.get(Multiscope.class, Fighter.class));
+		Key<Pilot> key = Key.get(Pilot.class);
+		Provider<Pilot> pilots = inj.getProvider(key);
+		// the scope's own provider, without guice's provision bookkeeping around it
+		Provider<Pilot> provider = fighterScope.scope(key, pilots);
+
+		ScopeInstance[] fighters = new ScopeInstance[2];
+		for (int i = 0; i < fighters.length; i++) {
+			fighters[i] = inj.getInstance(Key.get(ScopeInstance.class, NewFighter.class));
+			fighters[i].enterScope();
+			pilots.get();
+			fighters[i].exitScope();
+		}
+
+		double[] results = new double[WORKLOADS.length];
+		for (int round = 0; round < ROUNDS; round++) {
+			results[0] = (double) sameInstance(fighters[0], provider) / ITERATIONS;
+			results[1] = (double) switching(fighters, provider) / ITERATIONS;
+		}
+		return results;
+	}
+
+	private static long sameInstance(ScopeInstance instance, Provider<Pilot> provider) {
+		instance.enterScope();
+		try {
+			long start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				sink(provider.get());
+			}
+			return System.nanoTime() - start;
+		} finally {
+			instance.exitScope();
+		}
+	}
+
+	private static long switching(ScopeInstance[] instances, Provider<Pilot> provider) {
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			ScopeInstance instance = instances[i & 1];
+			instance.enterScope();
+			sink(provider.get());
+			instance.exitScope();
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static int blackhole;
+
+	private static void sink(Object o) {
+		blackhole ^= System.identityHashCode(o);
+	}
+}
@@ -25,6 +25,8 @@ import org.junit.Test;
 import org.protobee.guice.multiscopes.ScopeInstance;
 import org.protobee.guice.multiscopes.example.FighterFactory;
 import org.protobee.guice.multiscopes.example.FighterHolder;
+import org.protobee.guice.multiscopes.example.scoped.BattlestarFighterRoster;
+import org.protobee.guice.multiscopes.example.scoped.CommandDeck;
 import org.protobee.guice.multiscopes.example.scopes.Battlestar;
 import org.protobee.guice.multiscopes.example.scopes.NewBattlestar;
 import org.protobee.guice.multiscopes.test.AbstractMultiscopeTest;
@@ -82,6 +84,46 @@ public class MultipleScopeExampleTests extends AbstractMultiscopeTest {
 		}
 	}
 
+	@Test public void testExplicitInstanceProvisioning() {
+		FighterFactory fighterFactory = injector.getInstance(FighterFactory.class);
+		ScopeInstance galactica = injector.getInstance(Key.get(ScopeInstance.class, NewBattlestar.class));
+		ScopeInstance pegasus = injector.getInstance(Key.get(ScopeInstance.class, NewBattlestar.class));
+
+		FighterHolder fighter;
+		BattlestarFighterRoster galacticaRoster;
+		try {
+			galactica.enterScope();
+			fighter = fighterFactory.create();
+			galacticaRoster = injector.getInstance(BattlestarFighterRoster.class);
+		} finally {
+			galactica.exitScope();
+		}
+
+		try {
+			pegasus.enterScope();
+			assertSame(galacticaRoster, galactica.get(BattlestarFighterRoster.class));
+			assertTrue(galactica.get(BattlestarFighterRoster.class).getFighters().contains(fighter));
+
+			BattlestarFighterRoster pegasusRoster = injector.getInstance(BattlestarFighterRoster.class);
+			assertNotSame(galacticaRoster, pegasusRoster);
+			assertTrue(pegasus.isInScope());
+			assertFalse(galactica.isInScope());
+
+			// created in the given instance, and we stay in our instance
+			CommandDeck galacticaDeck = galactica.get(CommandDeck.class);
+			assertTrue(pegasus.isInScope());
+			assertSame(pegasus, injector.getInstance(Key.get(ScopeInstance.class, Battlestar.class)));
+			assertNotSame(galacticaDeck, injector.getInstance(CommandDeck.class));
+			assertSame(galacticaDeck, galactica.get(Key.get(CommandDeck.class)));
+		} finally {
+			pegasus.exitScope();
+		}
+
+		assertFalse(galactica.isInScope());
+		assertSame(fighter, fighter.getScope().get(FighterHolder.class));
+		assertSame(galactica, fighter.getScope().get(FighterHolder.class).getBattlestar());
+	}
+
 	@Test public void testCompleteDescoperAndExitor() {
 		FighterFactory fighterFactory = injector.getInstance(FighterFactory.class);
 		ScopeInstance battlestar = injector.getInstance(Key.get(ScopeInstance.class, NewBattlestar.class));
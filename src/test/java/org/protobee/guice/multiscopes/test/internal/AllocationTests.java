@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.test.internal;
+
+import com.google.inject.*;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.protobee.guice.multiscopes.Multiscope;
+import org.protobee.guice.multiscopes.Multiscopes;
+import org.protobee.guice.multiscopes.ScopeInstance;
+import org.protobee.guice.multiscopes.test.internal.UnboundedTests.NewTableInstance;
+import org.protobee.guice.multiscopes.test.internal.UnboundedTests.Table;
+import org.protobee.guice.multiscopes.test.internal.UnboundedTests.TableScope;
+import org.protobee.guice.multiscopes.test.internal.UnboundedTests.Tablecloth;
+import org.protobee.guice.multiscopes.util.CompleteDescoper;
+import org.protobee.guice.multiscopes.util.Descoper;
+import org.protobee.guice.multiscopes.util.MultiscopeExitor;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Makes sure the steady state of entering, exiting, scoped injection and descoping doesn't
+ * allocate. Skipped on JVMs that can't count the bytes allocated by a thread.
+ */
+public class AllocationTests {
+
+	private static final int ITERATIONS = 20000;
+
+	Injector inj;
+	com.sun.management.ThreadMXBean threads;
+
+	@Before public void setUp() {
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		inj = Guice.createInjector(new AbstractModule() {
+			@Override protected void configure() {
+				Multiscopes.newBinder(binder(), TableScope.class, Table.class, NewTableInstance.class);
+				bind(CompleteDescoper.class);
+			}
+		});
+	}
+
+	@After public void clearScopes() {
+		if (inj == null) {
+			return;
+		}
+		MultiscopeExitor exitor = inj.getInstance(MultiscopeExitor.class);
+		exitor.exitAllScopes();
+	}
+
+	@Test public void testEnterAndExit() {
+		final ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+
+		assertNoAllocation("enter and exit", new Runnable() {
+			@Override public void run() {
+				table.enterScope();
+				table.exitScope();
+			}
+		});
+	}
+
+	@Test public void testScopedHit() {
+		ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		Multiscope multiscope = inj.getInstance(Key.get(Multiscope.class, Table.class));
+		final Provider<Tablecloth> provider = multiscope.scope(Key.get(Tablecloth.class), inj.getProvider(Tablecloth.class));
+
+		table.enterScope();
+		try {
+			inj.getInstance(Tablecloth.class);
+			assertNoAllocation("scoped hit", new Runnable() {
+				@Override public void run() {
+					provider.get();
+				}
+			});
+		} finally {
+			table.exitScope();
+		}
+	}
+
+	@Test public void testDescopeAndRescope() {
+		ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		final Descoper descoper = inj.getInstance(Key.get(Descoper.class, Table.class));
+		final CompleteDescoper completeDescoper = inj.getInstance(CompleteDescoper.class);
+
+		table.enterScope();
+		try {
+			assertNoAllocation("descope and rescope", new Runnable() {
+				@Override public void run() {
+					descoper.descope();
+					descoper.rescope();
+					completeDescoper.descope();
+					completeDescoper.rescope();
+				}
+			});
+			assertTrue(table.isInScope());
+		} finally {
+			table.exitScope();
+		}
+	}
+
+	private void assertNoAllocation(String operation, Runnable runnable) {
+		// warm up, so the measured runs see compiled code and grown scope tables
+		for (int i = 0; i < ITERATIONS; i++) {
+			runnable.run();
+		}
+		long threadId = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < ITERATIONS; i++) {
+			runnable.run();
+		}
+		long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+		// less than a byte per run leaves room for the measurement itself
+		assertTrue(operation + " allocated " + allocated + " bytes in " + ITERATIONS + " runs", allocated < ITERATIONS);
+	}
+}
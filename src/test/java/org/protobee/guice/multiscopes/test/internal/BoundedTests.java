@@ -26,16 +26,27 @@ import org.junit.After;
 import org.junit.Test;
 import org.protobee.guice.multiscopes.BoundedMultiscopeBinder;
 import org.protobee.guice.multiscopes.BoundedMultiscopeBinder.PrescopeType;
+import org.protobee.guice.multiscopes.MappedRecord;
+import org.protobee.guice.multiscopes.MappedRecords;
 import org.protobee.guice.multiscopes.Multiscope;
 import org.protobee.guice.multiscopes.Multiscopes;
 import org.protobee.guice.multiscopes.ScopeInstance;
+import org.protobee.guice.multiscopes.util.BoundedScopes;
 import org.protobee.guice.multiscopes.util.MultiscopeExitor;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.*;
@@ -107,6 +118,48 @@ public class BoundedTests {
 	}
 	// enough
 
+	@Test public void testMapReduce() throws Exception {
+		inj = Guice.createInjector(new PlanetsModule(), new PrecopedConstantsModule());
+		Set<ScopeInstance> planets = inj.getInstance(Key.get(new TypeLiteral<Set<ScopeInstance>>() {
+		}, Planet.class));
+		final Provider<String> names = inj.getProvider(Key.get(String.class, Planet.class));
+
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			String letters = BoundedScopes.mapReduce(planets, new Callable<String>() {
+				@Override public String call() {
+					return names.get().substring(0, 1);
+				}
+			}, "", new BoundedScopes.Reducer<String, String>() {
+				@Override public String reduce(String accumulated, String value) {
+					return accumulated + value;
+				}
+			}, pool);
+			assertEquals(Sets.newHashSet('M', 'V'), Sets.newHashSet(letters.charAt(0), letters.charAt(1)));
+
+			final Set<String> visited = Collections.synchronizedSet(Sets.<String>newHashSet());
+			BoundedScopes.forEachParallel(planets, new Runnable() {
+				@Override public void run() {
+					visited.add(names.get());
+				}
+			}, pool);
+			assertEquals(Sets.newHashSet("Mercury", "Venus"), visited);
+
+			try {
+				BoundedScopes.forEachParallel(planets, new Runnable() {
+					@Override public void run() {
+						throw new IllegalStateException();
+					}
+				}, pool);
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IllegalStateException);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
 	@Test public void testPrescoped() {
 		inj = Guice.createInjector(new PlanetsModule(), new PrecopedConstantsModule());
 
@@ -142,12 +195,136 @@ public class BoundedTests {
 		});
 
 		ScopeInstance mercury = inj.getInstance(Key.get(ScopeInstance.class, Mercury.class));
+		Key<Object> lazyKey = Key.get(Object.class, Planet.class);
 
 		assertFalse(providedLazy.get());
+		assertFalse(mercury.isPresent(lazyKey));
+		assertNull(mercury.tryGet(lazyKey));
 		mercury.enterScope();
-		inj.getInstance(Key.get(Object.class, Planet.class));
+		Object lazy = inj.getInstance(lazyKey);
 		assertTrue(providedLazy.get());
+		assertTrue(mercury.isPresent(lazyKey));
+		assertSame(lazy, mercury.tryGet(lazyKey));
+		mercury.exitScope();
+	}
+
+	@Test public void testMappedPrescope() throws Exception {
+		final File file = File.createTempFile("planets", ".dat");
+		file.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try {
+			for (int i = 0; i < 10; i++) {
+				out.writeInt(i);
+				out.writeDouble(i * 1.5);
+			}
+		} finally {
+			out.close();
+		}
+		final TypeLiteral<MappedRecords<Moon>> moonsType = new TypeLiteral<MappedRecords<Moon>>() {
+		};
+		final Provider<Moon> moons = new Provider<Moon>() {
+			@Override public Moon get() {
+				return new Moon();
+			}
+		};
+
+		inj = Guice.createInjector(new PlanetsModule(), new AbstractModule() {
+			@Override protected void configure() {
+				BoundedMultiscopeBinder boundedScopes = Multiscopes.newBoundedBinder(binder(), PlanetScope.class, Planet.class);
+
+				bind(moonsType).annotatedWith(Mercury.class).toInstance(MappedRecords.of(file, 12, moons));
+				bind(moonsType).annotatedWith(Venus.class).toInstance(MappedRecords.of(file, 12, moons));
+				boundedScopes.prescopeInstance(Mercury.class).addInstanceObject(Key.get(moonsType, Mercury.class), PrescopeType.MAPPED);
+				boundedScopes.prescopeInstance(Venus.class).addInstanceObject(Key.get(moonsType, Venus.class), PrescopeType.MAPPED);
+
+				Multiscopes.bindAsPrescoped(binder(), PlanetScope.class, Planet.class, moonsType);
+			}
+		});
+
+		ScopeInstance mercury = inj.getInstance(Key.get(ScopeInstance.class, Mercury.class));
+		ScopeInstance venus = inj.getInstance(Key.get(ScopeInstance.class, Venus.class));
+		Key<MappedRecords<Moon>> moonsKey = Key.get(moonsType, Planet.class);
+
+		mercury.enterScope();
+		MappedRecords<Moon> mercuryMoons = inj.getInstance(moonsKey);
 		mercury.exitScope();
+		venus.enterScope();
+		MappedRecords<Moon> venusMoons = inj.getInstance(moonsKey);
+		venus.exitScope();
+
+		assertNotSame(mercuryMoons, venusMoons);
+		assertEquals(10, mercuryMoons.size());
+		assertEquals(7, mercuryMoons.get(7).id());
+		Moon moon = venusMoons.get(0);
+		for (int i = 0; i < venusMoons.size(); i++) {
+			assertSame(moon, venusMoons.at(i, moon));
+			assertEquals(i, moon.id());
+			assertEquals(i * 1.5, moon.mass(), 0);
+		}
+		assertTrue(mercuryMoons.asByteBuffer().isReadOnly());
+
+		try {
+			mercuryMoons.get(10);
+			fail();
+		} catch (IndexOutOfBoundsException e) {}
+	}
+
+	@Test(expected = CreationException.class) public void testMappedPrescopeType() {
+		Guice.createInjector(new PlanetsModule(), new AbstractModule() {
+			@Override protected void configure() {
+				Multiscopes.newBoundedBinder(binder(), PlanetScope.class, Planet.class).prescopeInstance(Mercury.class)
+						.addInstanceObject(Key.get(String.class, Mercury.class), PrescopeType.MAPPED);
+			}
+		});
+	}
+
+	@Test public void testInternPrescoped() {
+		inj = Guice.createInjector(new PlanetsModule(), new AbstractModule() {
+			@Override protected void configure() {
+				BoundedMultiscopeBinder boundedScopes = Multiscopes.newBoundedBinder(binder(), PlanetScope.class, Planet.class);
+				boundedScopes.internPrescopedValues();
+
+				// equal, but not the same
+				bind(String.class).annotatedWith(Mercury.class).toInstance(new String("Sun"));
+				bind(String.class).annotatedWith(Venus.class).toInstance(new String("Sun"));
+				bind(Integer.class).annotatedWith(Mercury.class).toInstance(new Integer(1000));
+				bind(Integer.class).annotatedWith(Venus.class).toInstance(new Integer(1000));
+				boundedScopes.prescopeInstance(Mercury.class).addInstanceObject(Key.get(String.class, Mercury.class), PrescopeType.EAGER)
+						.addInstanceObject(Key.get(Integer.class, Mercury.class), PrescopeType.LAZY);
+				boundedScopes.prescopeInstance(Venus.class).addInstanceObject(Key.get(String.class, Venus.class), PrescopeType.EAGER)
+						.addInstanceObject(Key.get(Integer.class, Venus.class), PrescopeType.LAZY);
+
+				Multiscopes.bindAsPrescoped(binder(), PlanetScope.class, Planet.class, String.class);
+				Multiscopes.bindAsPrescoped(binder(), PlanetScope.class, Planet.class, Integer.class);
+			}
+		});
+		Multiscope planets = inj.getInstance(Key.get(Multiscope.class, Planet.class));
+		ScopeInstance mercury = inj.getInstance(Key.get(ScopeInstance.class, Mercury.class));
+		ScopeInstance venus = inj.getInstance(Key.get(ScopeInstance.class, Venus.class));
+		assertEquals(1, planets.getMetrics().getInternedObjects().sum());
+
+		mercury.enterScope();
+		String mercurySun = inj.getInstance(Key.get(String.class, Planet.class));
+		Integer mercuryMass = inj.getInstance(Key.get(Integer.class, Planet.class));
+		mercury.exitScope();
+		venus.enterScope();
+		String venusSun = inj.getInstance(Key.get(String.class, Planet.class));
+		Integer venusMass = inj.getInstance(Key.get(Integer.class, Planet.class));
+		venus.exitScope();
+
+		assertSame(mercurySun, venusSun);
+		assertSame(mercuryMass, venusMass);
+		assertEquals(2, planets.getMetrics().getInternedObjects().sum());
+	}
+
+	static class Moon extends MappedRecord {
+		int id() {
+			return buffer().getInt(offset());
+		}
+
+		double mass() {
+			return buffer().getDouble(offset() + 4);
+		}
 	}
 
 	// scope binding annotation
@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.test.internal;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.inject.*;
+import org.junit.After;
+import org.junit.Test;
+import org.protobee.guice.multiscopes.MultiscopeBinder;
+import org.protobee.guice.multiscopes.Multiscopes;
+import org.protobee.guice.multiscopes.ScopeDeadlockException;
+import org.protobee.guice.multiscopes.ScopeInstance;
+import org.protobee.guice.multiscopes.util.MultiscopeExitor;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CreationLockTests {
+
+	Injector inj;
+
+	@After public void clearScopes() {
+		if (inj == null) {
+			return;
+		}
+		MultiscopeExitor exitor = inj.getInstance(MultiscopeExitor.class);
+		exitor.exitAllScopes();
+	}
+
+	@Test public void testCycleDetected() throws InterruptedException {
+		inj = Guice.createInjector(new CrossingModule(false));
+
+		List<Throwable> failures = crossCreation();
+		assertFalse(failures.isEmpty());
+		ScopeDeadlockException deadlock = findDeadlock(failures);
+		assertNotNull(deadlock);
+		assertTrue(deadlock.getMessage().contains("cycle"));
+		assertEquals(2, deadlock.getWaitChain().size());
+		String chain = deadlock.getWaitChain().toString();
+		assertTrue(chain.contains("alpha-thread"));
+		assertTrue(chain.contains("beta-thread"));
+		assertTrue(chain.contains(Alpha.class.getName()));
+		assertTrue(chain.contains(Beta.class.getName()));
+	}
+
+	@Test public void testCreationTimeout() throws InterruptedException {
+		inj = Guice.createInjector(new CrossingModule(true));
+
+		List<Throwable> failures = crossCreation();
+		assertFalse(failures.isEmpty());
+		ScopeDeadlockException deadlock = findDeadlock(failures);
+		assertNotNull(deadlock);
+		assertTrue(deadlock.getMessage().contains("Timed out"));
+		assertFalse(deadlock.getWaitChain().isEmpty());
+	}
+
+	@Test public void testUncontendedCreation() {
+		inj = Guice.createInjector(new CrossingModule(true));
+
+		ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		try {
+			table.enterScope();
+			assertSame(inj.getInstance(Leaf.class), inj.getInstance(Leaf.class));
+		} finally {
+			table.exitScope();
+		}
+	}
+
+	/**
+	 * Creates {@link Alpha} and {@link Beta} at the same time in two different table instances,
+	 * which need each other.
+	 */
+	private List<Throwable> crossCreation() throws InterruptedException {
+		final List<Throwable> failures = Collections.synchronizedList(Lists.<Throwable>newArrayList());
+		Thread alpha = new Thread(new ScopedCreation(Alpha.class, failures), "alpha-thread");
+		Thread beta = new Thread(new ScopedCreation(Beta.class, failures), "beta-thread");
+		alpha.start();
+		beta.start();
+		alpha.join(10000);
+		beta.join(10000);
+		assertFalse(alpha.isAlive());
+		assertFalse(beta.isAlive());
+		return failures;
+	}
+
+	/**
+	 * Once the failing thread gives up its lock, the other thread can fail too, and record its
+	 * failure first.
+	 */
+	private static ScopeDeadlockException findDeadlock(List<Throwable> failures) {
+		synchronized (failures) {
+			for (Throwable failure : failures) {
+				for (Throwable cause : Throwables.getCausalChain(failure)) {
+					if (cause instanceof ScopeDeadlockException) {
+						return (ScopeDeadlockException) cause;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	private class ScopedCreation implements Runnable {
+		private final Class<?> type;
+		private final List<Throwable> failures;
+
+		ScopedCreation(Class<?> type, List<Throwable> failures) {
+			this.type = type;
+			this.failures = failures;
+		}
+
+		@Override public void run() {
+			ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+			try {
+				table.enterScope();
+				inj.getInstance(type);
+			} catch (Throwable t) {
+				failures.add(t);
+			} finally {
+				table.exitScope();
+			}
+		}
+	}
+
+	// scope binding annotation
+	@Retention(RetentionPolicy.RUNTIME) @Target({ ElementType.FIELD, ElementType.PARAMETER, ElementType.METHOD }) @BindingAnnotation public static @interface Table {
+	}
+
+	// scope annotation
+	@Target({ ElementType.TYPE, ElementType.METHOD }) @Retention(RetentionPolicy.RUNTIME) @ScopeAnnotation public static @interface TableScope {
+	}
+
+	// new scope instance annotation
+	@Retention(RetentionPolicy.RUNTIME) @Target({ ElementType.FIELD, ElementType.PARAMETER, ElementType.METHOD }) @BindingAnnotation public static @interface NewTableInstance {
+	}
+
+	public static class Alpha {
+	}
+
+	public static class Beta {
+	}
+
+	@TableScope public static class Leaf {
+	}
+
+	/**
+	 * Binds {@link Alpha} and {@link Beta} so that each needs the other once both threads are
+	 * creating them.
+	 */
+	static class CrossingModule extends AbstractModule {
+		private final boolean timeout;
+		private final CountDownLatch bothCreating = new CountDownLatch(2);
+
+		CrossingModule(boolean timeout) {
+			this.timeout = timeout;
+		}
+
+		@Override protected void configure() {
+			MultiscopeBinder tables = Multiscopes.newBinder(binder(), TableScope.class, Table.class, NewTableInstance.class);
+			if (timeout) {
+				tables.withCreationTimeout(200, TimeUnit.MILLISECONDS);
+			} else {
+				tables.detectCreationCycles();
+			}
+			bind(Leaf.class);
+			bind(Alpha.class).toProvider(new CrossingProvider<Alpha, Beta>(new Alpha(), Beta.class, bothCreating)).in(TableScope.class);
+			bind(Beta.class).toProvider(new CrossingProvider<Beta, Alpha>(new Beta(), Alpha.class, bothCreating)).in(TableScope.class);
+		}
+	}
+
+	static class CrossingProvider<T, O> implements Provider<T> {
+		private final T value;
+		private final Class<O> other;
+		private final CountDownLatch bothCreating;
+		@Inject Injector injector;
+
+		CrossingProvider(T value, Class<O> other, CountDownLatch bothCreating) {
+			this.value = value;
+			this.other = other;
+			this.bothCreating = bothCreating;
+		}
+
+		@Override public T get() {
+			bothCreating.countDown();
+			try {
+				bothCreating.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			injector.getInstance(other);
+			return value;
+		}
+	}
+}
@@ -2,9 +2,12 @@ package org.protobee.guice.multiscopes.test.internal;
 
 import com.google.inject.*;
 import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 import org.protobee.guice.multiscopes.Multiscopes;
 import org.protobee.guice.multiscopes.ScopeInstance;
+import org.protobee.guice.multiscopes.scopes.ScopeContext;
+import org.protobee.guice.multiscopes.scopes.ScopeContextThread;
 import org.protobee.guice.multiscopes.util.CompleteDescoper;
 import org.protobee.guice.multiscopes.util.Descoper;
 import org.protobee.guice.multiscopes.util.MultiscopeExitor;
@@ -13,12 +16,19 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 
 public class DescoperTests {
 
 	Injector inj;
+	int enteredBefore;
+
+	@Before public void countEntered() {
+		enteredBefore = ScopeContext.current().getEnteredCount();
+	}
 
 	@After public void clearScopes() {
 		if (inj == null) {
@@ -80,6 +90,166 @@ public class DescoperTests {
 		}
 	}
 
+	@Test public void testDescopeTwiceFails() {
+		inj = Guice.createInjector(new UnboundedModule());
+
+		ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		CompleteDescoper descoper = inj.getInstance(CompleteDescoper.class);
+
+		try {
+			table.enterScope();
+			descoper.descope();
+			boolean caught = false;
+			try {
+				descoper.descope();
+			} catch (IllegalStateException e) {
+				caught = true;
+			}
+			assertTrue(caught);
+
+			table.enterScope();
+			caught = false;
+			try {
+				descoper.rescope();
+			} catch (IllegalStateException e) {
+				caught = true;
+			}
+			assertTrue(caught);
+			table.exitScope();
+
+			descoper.rescope();
+			assertTrue(table.isInScope());
+		} finally {
+			table.exitScope();
+		}
+	}
+
+	@Test public void testNestedDescopers() {
+		inj = Guice.createInjector(new UnboundedModule());
+
+		ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		Descoper outer = inj.getInstance(Key.get(Descoper.class, Table.class));
+		Descoper inner = inj.getInstance(Key.get(Descoper.class, Table.class));
+		CompleteDescoper outerComplete = inj.getInstance(CompleteDescoper.class);
+		CompleteDescoper innerComplete = inj.getInstance(CompleteDescoper.class);
+
+		try {
+			table.enterScope();
+			outer.descope();
+			inner.descope();
+			inner.rescope();
+			assertFalse(table.isInScope());
+			outer.rescope();
+			assertTrue(table.isInScope());
+
+			outerComplete.descope();
+			innerComplete.descope();
+			innerComplete.rescope();
+			assertFalse(table.isInScope());
+			outerComplete.rescope();
+			assertTrue(table.isInScope());
+		} finally {
+			table.exitScope();
+		}
+	}
+
+	@Test public void testCompleteDescoperRestoresEnteredInstances() {
+		inj = Guice.createInjector(new UnboundedModule(), new ThreadScopeTests.ThreadModule());
+
+		ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		ScopeInstance chair = inj.getInstance(Key.get(ScopeInstance.class, NewChairInstance.class));
+		CompleteDescoper descoper = inj.getInstance(CompleteDescoper.class);
+
+		try {
+			table.enterScope();
+			ThreadScopeTests.Buffer buffer = inj.getInstance(ThreadScopeTests.Buffer.class);
+
+			descoper.descope();
+			assertFalse(table.isInScope());
+			// the instance of the thread stays entered
+			assertSame(buffer, inj.getInstance(ThreadScopeTests.Buffer.class));
+
+			descoper.rescope();
+			assertTrue(table.isInScope());
+			assertFalse(chair.isInScope());
+			assertSame(buffer, inj.getInstance(ThreadScopeTests.Buffer.class));
+		} finally {
+			table.exitScope();
+		}
+	}
+
+	@Test public void testRescopeOnOtherThread() throws InterruptedException {
+		inj = Guice.createInjector(new UnboundedModule());
+
+		final ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		final Descoper descoper = inj.getInstance(Key.get(Descoper.class, Table.class));
+		final AtomicBoolean rescoped = new AtomicBoolean(false);
+
+		table.enterScope();
+		descoper.descope();
+		assertFalse(table.isInScope());
+		Thread thread = new Thread(new Runnable() {
+			@Override public void run() {
+				descoper.rescope();
+				rescoped.set(table.isInScope());
+				table.exitScope();
+			}
+		});
+		thread.start();
+		thread.join();
+
+		assertTrue(rescoped.get());
+		assertFalse(table.isInScope());
+	}
+
+	@Test public void testExitorOnlyExitsItsInjector() {
+		inj = Guice.createInjector(new UnboundedModule());
+		Injector other = Guice.createInjector(new UnboundedModule());
+
+		ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		ScopeInstance otherTable = other.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		try {
+			table.enterScope();
+			otherTable.enterScope();
+			assertEquals(2, ScopeContext.current().getEnteredCount() - enteredBefore);
+
+			inj.getInstance(MultiscopeExitor.class).exitAllScopes();
+			assertFalse(table.isInScope());
+			assertTrue(otherTable.isInScope());
+		} finally {
+			otherTable.exitScope();
+		}
+		assertEquals(0, ScopeContext.current().getEnteredCount() - enteredBefore);
+	}
+
+	@Test public void testScopeContextThread() throws InterruptedException {
+		inj = Guice.createInjector(new UnboundedModule());
+
+		final ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		final CompleteDescoper descoper = inj.getInstance(CompleteDescoper.class);
+		final AtomicReference<Legs> legs = new AtomicReference<Legs>();
+		final AtomicBoolean rescoped = new AtomicBoolean(false);
+		Thread thread = new ScopeContextThread(new Runnable() {
+			@Override public void run() {
+				try {
+					table.enterScope();
+					legs.set(inj.getInstance(Legs.class));
+					descoper.descope();
+					descoper.rescope();
+					rescoped.set(table.isInScope());
+				} finally {
+					table.exitScope();
+				}
+			}
+		}, "table-worker");
+		thread.start();
+		thread.join();
+
+		assertTrue(rescoped.get());
+		assertFalse(table.isInScope());
+		assertSame(legs.get(), table.get(Legs.class));
+	}
+
 	// scope binding annotation
 	@Retention(RetentionPolicy.RUNTIME) @Target({ ElementType.FIELD, ElementType.PARAMETER, ElementType.METHOD }) @BindingAnnotation public static @interface Table {
 	}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.test.internal;
+
+import com.google.common.collect.Lists;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.ScopeAnnotation;
+import org.junit.After;
+import org.junit.Test;
+import org.protobee.guice.multiscopes.GenerateMultiscope;
+import org.protobee.guice.multiscopes.Multiscope;
+import org.protobee.guice.multiscopes.ScopeInstance;
+import org.protobee.guice.multiscopes.processor.MultiscopeProcessor;
+import org.protobee.guice.multiscopes.util.MultiscopeExitor;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GeneratedScopeTests {
+
+	Injector inj;
+
+	@After public void clearScopes() {
+		if (inj == null) {
+			return;
+		}
+		MultiscopeExitor exitor = inj.getInstance(MultiscopeExitor.class);
+		exitor.exitAllScopes();
+	}
+
+	@Test public void testGeneratedAnnotations() {
+		assertNotNull(DiningScope.class.getAnnotation(ScopeAnnotation.class));
+		assertTrue(Dining.class.isAnnotation());
+		assertTrue(NewDining.class.isAnnotation());
+	}
+
+	@Test public void testScopedKeys() {
+		assertEquals(Key.get(Plate.class), DiningScopeModule.PLATE_KEY.getKey());
+		assertEquals(Key.get(WineGlass.class), DiningScopeModule.WINE_GLASS_KEY.getKey());
+	}
+
+	@Test public void testPreassignedProviderSlots() {
+		inj = Guice.createInjector(new DiningScopeModule());
+
+		Multiscope scope = inj.getInstance(Key.get(Multiscope.class, Dining.class));
+		assertEquals(Arrays.<Key<?>> asList(Key.get(Plate.class), Key.get(WineGlass.class)), scope.getSettings().getPreassignedProviderSlots());
+
+		ScopeInstance dinner = inj.getInstance(Key.get(ScopeInstance.class, NewDining.class));
+		dinner.enterScope();
+		Plate plate = inj.getInstance(Plate.class);
+		WineGlass glass = inj.getInstance(WineGlass.class);
+		assertSame(plate, inj.getInstance(Plate.class));
+		assertSame(glass, inj.getInstance(WineGlass.class));
+		dinner.exitScope();
+	}
+
+	@Test public void testGeneratedModule() {
+		inj = Guice.createInjector(new DiningScopeModule());
+
+		Multiscope scope = inj.getInstance(Key.get(Multiscope.class, Dining.class));
+		assertEquals(Dining.class, scope.getBindingAnnotation());
+
+		ScopeInstance dinner = inj.getInstance(Key.get(ScopeInstance.class, NewDining.class));
+		ScopeInstance lunch = inj.getInstance(Key.get(ScopeInstance.class, NewDining.class));
+		Plate plate;
+		try {
+			dinner.enterScope();
+			plate = inj.getInstance(Plate.class);
+			assertSame(plate, inj.getInstance(Plate.class));
+			assertSame(dinner, inj.getInstance(Key.get(ScopeInstance.class, Dining.class)));
+		} finally {
+			dinner.exitScope();
+		}
+		try {
+			lunch.enterScope();
+			assertNotSame(plate, inj.getInstance(Plate.class));
+		} finally {
+			lunch.exitScope();
+		}
+	}
+
+	@Test public void testConstantNameCollision() {
+		String source = "@org.protobee.guice.multiscopes.GenerateMultiscope(value = \"Kitchen\", scoped = { Kitchen.Foobar.class, Kitchen.FOOBar.class })\n" + "interface Kitchen {\n" + "  class Foobar {}\n" + "  class FOOBar {}\n" + "}";
+		List<Diagnostic<? extends JavaFileObject>> errors = process("Kitchen", source);
+		assertEquals(errors.toString(), 1, errors.size());
+		assertTrue(errors.toString(), errors.get(0).getMessage(null).contains("FOOBAR_KEY"));
+	}
+
+	@Test public void testUnresolvedScopedClass() {
+		String source = "@org.protobee.guice.multiscopes.GenerateMultiscope(value = \"Pantry\", scoped = { Missing.class })\n" + "interface Pantry {\n" + "}";
+		List<Diagnostic<? extends JavaFileObject>> errors = process("Pantry", source);
+		boolean reported = false;
+		for (Diagnostic<? extends JavaFileObject> error : errors) {
+			reported |= error.getMessage(null).contains("could not be resolved");
+		}
+		assertTrue(errors.toString(), reported);
+	}
+
+	/**
+	 * Runs the processor on the source, without generating anything.
+	 *
+	 * @return the errors reported
+	 */
+	private static List<Diagnostic<? extends JavaFileObject>> process(String className, final String source) {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assertNotNull("the processor tests need a JDK", compiler);
+		JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///" + className + ".java"), JavaFileObject.Kind.SOURCE) {
+			@Override public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return source;
+			}
+		};
+		String classPath = new File(GenerateMultiscope.class.getProtectionDomain().getCodeSource().getLocation().getPath()).getPath();
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		CompilationTask task = compiler.getTask(null, null, diagnostics, Arrays.asList("-proc:only", "-cp", classPath), null, Collections.singletonList(file));
+		task.setProcessors(Collections.singletonList(new MultiscopeProcessor()));
+		task.call();
+		List<Diagnostic<? extends JavaFileObject>> errors = Lists.newArrayList();
+		for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+			if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+				errors.add(diagnostic);
+			}
+		}
+		return errors;
+	}
+
+	@GenerateMultiscope(value = "Dining", scoped = { Plate.class, WineGlass.class }) interface DiningDeclaration {
+	}
+
+	public static class Plate {
+	}
+
+	public static class WineGlass {
+	}
+}
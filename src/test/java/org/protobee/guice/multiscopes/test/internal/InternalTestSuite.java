@@ -24,5 +24,5 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
-@RunWith(Suite.class) @SuiteClasses({ UnboundedTests.class, BoundedTests.class, DescoperTests.class }) public class InternalTestSuite {
+@RunWith(Suite.class) @SuiteClasses({ UnboundedTests.class, BoundedTests.class, DescoperTests.class, CreationLockTests.class, AllocationTests.class, GeneratedScopeTests.class, StripedTests.class, ThreadScopeTests.class }) public class InternalTestSuite {
 }
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.test.internal;
+
+import com.google.common.collect.Sets;
+import com.google.inject.*;
+import org.junit.After;
+import org.junit.Test;
+import org.protobee.guice.multiscopes.Multiscope;
+import org.protobee.guice.multiscopes.Multiscopes;
+import org.protobee.guice.multiscopes.ScopeInstance;
+import org.protobee.guice.multiscopes.util.MultiscopeExitor;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class StripedTests {
+
+	Injector inj;
+
+	@After public void clearScopes() {
+		if (inj == null) {
+			return;
+		}
+		MultiscopeExitor exitor = inj.getInstance(MultiscopeExitor.class);
+		exitor.exitAllScopes();
+	}
+
+	@Test public void testStripeEntry() {
+		inj = Guice.createInjector(new StripedModule(2));
+
+		ScopeInstance entry = inj.getInstance(Key.get(ScopeInstance.class, AnyEncoder.class));
+		Multiscope scope = inj.getInstance(Key.get(Multiscope.class, Encoding.class));
+		assertFalse(entry.isInScope());
+
+		Encoder encoder;
+		try {
+			entry.enterScope();
+			assertTrue(entry.isInScope());
+			assertTrue(scope.isInScope());
+			encoder = inj.getInstance(Encoder.class);
+			assertSame(encoder, inj.getInstance(Encoder.class));
+			ScopeInstance stripe = inj.getInstance(Key.get(ScopeInstance.class, Encoding.class));
+			assertNotSame(entry, stripe);
+			assertSame(encoder, stripe.tryGet(Key.get(Encoder.class)));
+		} finally {
+			entry.exitScope();
+		}
+		assertFalse(scope.isInScope());
+
+		// the same thread gets its home stripe again
+		try {
+			entry.enterScope();
+			assertSame(encoder, inj.getInstance(Encoder.class));
+		} finally {
+			entry.exitScope();
+		}
+	}
+
+	@Test public void testObjectsPerStripe() throws InterruptedException {
+		inj = Guice.createInjector(new StripedModule(2));
+		final ScopeInstance entry = inj.getInstance(Key.get(ScopeInstance.class, AnyEncoder.class));
+		final Set<Encoder> encoders = Collections.synchronizedSet(Sets.<Encoder>newIdentityHashSet());
+		final AtomicBoolean failed = new AtomicBoolean(false);
+
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override public void run() {
+					for (int j = 0; j < 500; j++) {
+						try {
+							entry.enterScope();
+							Encoder encoder = inj.getInstance(Encoder.class);
+							encoders.add(encoder);
+							if (!encoder.use()) {
+								failed.set(true);
+							}
+						} finally {
+							entry.exitScope();
+						}
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join(10000);
+			assertFalse(thread.isAlive());
+		}
+		assertFalse("an encoder was used by two threads at once", failed.get());
+		assertTrue(encoders.size() <= 2);
+	}
+
+	@Test public void testExitorReleasesStripe() throws InterruptedException {
+		inj = Guice.createInjector(new StripedModule(1));
+		final ScopeInstance entry = inj.getInstance(Key.get(ScopeInstance.class, AnyEncoder.class));
+
+		entry.enterScope();
+		final Encoder encoder = inj.getInstance(Encoder.class);
+		inj.getInstance(MultiscopeExitor.class).exitAllScopes();
+
+		final AtomicBoolean sameEncoder = new AtomicBoolean(false);
+		Thread other = new Thread(new Runnable() {
+			@Override public void run() {
+				try {
+					entry.enterScope();
+					sameEncoder.set(encoder == inj.getInstance(Encoder.class));
+				} finally {
+					entry.exitScope();
+				}
+			}
+		});
+		other.start();
+		other.join(5000);
+		assertFalse(other.isAlive());
+		assertTrue(sameEncoder.get());
+	}
+
+	// scope binding annotation
+	@Retention(RetentionPolicy.RUNTIME) @Target({ ElementType.FIELD, ElementType.PARAMETER, ElementType.METHOD }) @BindingAnnotation public static @interface Encoding {
+	}
+
+	// scope annotation
+	@Target({ ElementType.TYPE, ElementType.METHOD }) @Retention(RetentionPolicy.RUNTIME) @ScopeAnnotation public static @interface EncodingScope {
+	}
+
+	// stripe entry annotation
+	@Retention(RetentionPolicy.RUNTIME) @Target({ ElementType.FIELD, ElementType.PARAMETER, ElementType.METHOD }) @BindingAnnotation public static @interface AnyEncoder {
+	}
+
+	/**
+	 * Not thread safe, {@link #use()} fails if another thread is using it.
+	 */
+	@EncodingScope public static class Encoder {
+		private final AtomicBoolean inUse = new AtomicBoolean(false);
+
+		boolean use() {
+			if (!inUse.compareAndSet(false, true)) {
+				return false;
+			}
+			Thread.yield();
+			inUse.set(false);
+			return true;
+		}
+	}
+
+	static class StripedModule extends AbstractModule {
+		private final int stripes;
+
+		StripedModule(int stripes) {
+			this.stripes = stripes;
+		}
+
+		@Override protected void configure() {
+			Multiscopes.newStripedBinder(binder(), EncodingScope.class, Encoding.class, AnyEncoder.class, stripes);
+		}
+	}
+}
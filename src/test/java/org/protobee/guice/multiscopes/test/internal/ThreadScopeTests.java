@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Daniel Murphy and Deanna Surma
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *   * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package org.protobee.guice.multiscopes.test.internal;
+
+import com.google.inject.*;
+import org.junit.After;
+import org.junit.Test;
+import org.protobee.guice.multiscopes.Multiscopes;
+import org.protobee.guice.multiscopes.ScopeInstance;
+import org.protobee.guice.multiscopes.scopes.ThreadMultiscope;
+import org.protobee.guice.multiscopes.util.MultiscopeExitor;
+import org.protobee.guice.multiscopes.util.ScopeLeakDetector;
+
+import java.io.Closeable;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ThreadScopeTests {
+
+	Injector inj;
+
+	@After public void clearScopes() {
+		if (inj == null) {
+			return;
+		}
+		inj.getInstance(Key.get(ThreadMultiscope.class, PerThread.class)).closeAll();
+		MultiscopeExitor exitor = inj.getInstance(MultiscopeExitor.class);
+		exitor.exitAllScopes();
+	}
+
+	@Test public void testImplicitInstances() throws InterruptedException {
+		inj = Guice.createInjector(new ThreadModule());
+		ThreadMultiscope scope = inj.getInstance(Key.get(ThreadMultiscope.class, PerThread.class));
+		assertTrue(scope.isInScope());
+
+		final Buffer buffer = inj.getInstance(Buffer.class);
+		assertSame(buffer, inj.getInstance(Buffer.class));
+		ScopeInstance instance = inj.getInstance(Key.get(ScopeInstance.class, PerThread.class));
+		assertSame(scope.getThreadInstance(), instance);
+		assertSame(buffer, instance.tryGet(Key.get(Buffer.class)));
+
+		// exiting doesn't lose the thread's instance
+		scope.exitScope();
+		assertSame(buffer, inj.getInstance(Buffer.class));
+
+		final AtomicReference<Buffer> otherBuffer = new AtomicReference<Buffer>();
+		Thread other = new Thread(new Runnable() {
+			@Override public void run() {
+				otherBuffer.set(inj.getInstance(Buffer.class));
+			}
+		});
+		other.start();
+		other.join(5000);
+		assertNotNull(otherBuffer.get());
+		assertNotSame(buffer, otherBuffer.get());
+
+		assertEquals(1, scope.closeTerminatedThreads());
+		assertTrue(otherBuffer.get().closed);
+		assertFalse(buffer.closed);
+		assertEquals(1, scope.getThreadCount());
+	}
+
+	@Test public void testCollectedThreads() throws InterruptedException {
+		inj = Guice.createInjector(new ThreadModule());
+		ThreadMultiscope scope = inj.getInstance(Key.get(ThreadMultiscope.class, PerThread.class));
+
+		final AtomicReference<Buffer> otherBuffer = new AtomicReference<Buffer>();
+		Thread other = new Thread(new Runnable() {
+			@Override public void run() {
+				otherBuffer.set(inj.getInstance(Buffer.class));
+			}
+		});
+		other.start();
+		other.join(5000);
+		other = null;
+
+		// no explicit close, the scope notices the thread was collected when it's used
+		for (int i = 0; i < 50 && scope.getThreadCount() != 0; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertEquals(0, scope.getThreadCount());
+		assertTrue(otherBuffer.get().closed);
+	}
+
+	@Test public void testCollectedThreadsClosedOnInjection() throws InterruptedException {
+		inj = Guice.createInjector(new ThreadModule());
+		ThreadMultiscope scope = inj.getInstance(Key.get(ThreadMultiscope.class, PerThread.class));
+		Buffer buffer = inj.getInstance(Buffer.class);
+
+		final AtomicReference<Buffer> otherBuffer = new AtomicReference<Buffer>();
+		Thread other = new Thread(new Runnable() {
+			@Override public void run() {
+				otherBuffer.set(inj.getInstance(Buffer.class));
+			}
+		});
+		other.start();
+		other.join(5000);
+		other = null;
+
+		// exiting puts this thread back in its own instance on the next injection
+		for (int i = 0; i < 50 && !otherBuffer.get().closed; i++) {
+			System.gc();
+			Thread.sleep(10);
+			scope.exitScope();
+			assertSame(buffer, inj.getInstance(Buffer.class));
+		}
+		assertTrue(otherBuffer.get().closed);
+	}
+
+	@Test public void testLeakDetectorIgnoresThreadInstances() throws Exception {
+		inj = Guice.createInjector(new ThreadModule());
+		ScopeLeakDetector detector = new ScopeLeakDetector(1);
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			Callable<Buffer> task = detector.wrap(new Callable<Buffer>() {
+				@Override public Buffer call() {
+					return inj.getInstance(Buffer.class);
+				}
+			});
+			Buffer buffer = pool.submit(task).get();
+			for (int i = 0; i < 2; i++) {
+				assertSame(buffer, pool.submit(task).get());
+			}
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals(0, detector.getLeakCount());
+	}
+
+	@Test public void testCloseAll() {
+		inj = Guice.createInjector(new ThreadModule());
+		ThreadMultiscope scope = inj.getInstance(Key.get(ThreadMultiscope.class, PerThread.class));
+
+		Buffer buffer = inj.getInstance(Buffer.class);
+		ScopeInstance instance = scope.getThreadInstance();
+		scope.closeAll();
+		assertTrue(buffer.closed);
+		assertTrue(instance.isClosed());
+
+		Buffer newBuffer = inj.getInstance(Buffer.class);
+		assertNotSame(buffer, newBuffer);
+		assertNotSame(instance, scope.getThreadInstance());
+		try {
+			instance.enterScope();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	// scope binding annotation
+	@Retention(RetentionPolicy.RUNTIME) @Target({ ElementType.FIELD, ElementType.PARAMETER, ElementType.METHOD }) @BindingAnnotation public static @interface PerThread {
+	}
+
+	// scope annotation
+	@Target({ ElementType.TYPE, ElementType.METHOD }) @Retention(RetentionPolicy.RUNTIME) @ScopeAnnotation public static @interface PerThreadScope {
+	}
+
+	@PerThreadScope public static class Buffer implements Closeable {
+		volatile boolean closed = false;
+
+		@Override public void close() {
+			closed = true;
+		}
+	}
+
+	static class ThreadModule extends AbstractModule {
+		@Override protected void configure() {
+			Multiscopes.newThreadBinder(binder(), PerThreadScope.class, PerThread.class);
+		}
+	}
+}
@@ -21,20 +21,52 @@
 package org.protobee.guice.multiscopes.test.internal;
 
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.*;
 import org.junit.After;
 import org.junit.Test;
+import org.protobee.guice.multiscopes.AdmissionPolicy;
+import org.protobee.guice.multiscopes.KeyedScopeInstances;
 import org.protobee.guice.multiscopes.Multiscope;
 import org.protobee.guice.multiscopes.Multiscopes;
 import org.protobee.guice.multiscopes.PrescopedProvider;
+import org.protobee.guice.multiscopes.ScopeAdmissionException;
+import org.protobee.guice.multiscopes.ScopeCached;
 import org.protobee.guice.multiscopes.ScopeInstance;
+import org.protobee.guice.multiscopes.ScopePassivation;
+import org.protobee.guice.multiscopes.ScopedKey;
+import org.protobee.guice.multiscopes.ScopedValues;
+import org.protobee.guice.multiscopes.util.JavaScopeSerializer;
 import org.protobee.guice.multiscopes.util.MultiscopeExitor;
+import org.protobee.guice.multiscopes.util.ScopeAffinityExecutor;
+import org.protobee.guice.multiscopes.util.ScopeLeakDetector;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 
@@ -230,6 +262,806 @@ public class UnboundedTests {
 		assertTrue(caught);
 	}
 
+	@Test public void testPrescopeReplacesInjectedObject() {
+		inj = Guice.createInjector(new UnboundedModule(), new AbstractModule() {
+
+			@Override protected void configure() {
+				bind(Tablecloth.class).toProvider(new PrescopedProvider<Tablecloth>("Captain should have been prescoped")).in(TableScope.class);
+			}
+		});
+
+		ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		ScopeInstance table2 = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		Tablecloth first = new Tablecloth();
+		Tablecloth second = new Tablecloth();
+		table.putInScope(Key.get(Tablecloth.class), first);
+		table2.putInScope(Key.get(Tablecloth.class), second);
+
+		try {
+			table.enterScope();
+			assertSame(first, inj.getInstance(Tablecloth.class));
+			assertSame(first, inj.getInstance(Tablecloth.class));
+
+			table.putInScope(Key.get(Tablecloth.class), second);
+			assertSame(second, inj.getInstance(Tablecloth.class));
+			table.exitScope();
+
+			table2.enterScope();
+			assertSame(second, inj.getInstance(Tablecloth.class));
+			table2.putInScope(Key.get(Tablecloth.class), first);
+			assertSame(first, inj.getInstance(Tablecloth.class));
+		} finally {
+			table.exitScope();
+		}
+	}
+
+	@Test public void testCloseDropsCachedValues() throws InterruptedException {
+		inj = Guice.createInjector(new UnboundedModule());
+		ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		table.enterScope();
+		WeakReference<Legs> legs = new WeakReference<Legs>(inj.getInstance(Legs.class));
+		assertSame(legs.get(), inj.getInstance(Legs.class));
+		table.exitScope();
+		// the instance stays reachable, only its objects go
+		table.close();
+
+		for (int i = 0; i < 50 && legs.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull("the provider cache kept the value", legs.get());
+		assertTrue(table.isClosed());
+	}
+
+	@Test public void testScopedKeysAndSeeding() {
+		final List<ScopedKey<Seating>> prescopedKeys = Lists.newArrayList();
+		inj = Guice.createInjector(new UnboundedModule(), new AbstractModule() {
+
+			@Override protected void configure() {
+				bind(Tablecloth.class).toProvider(new PrescopedProvider<Tablecloth>("Captain should have been prescoped")).in(TableScope.class);
+				prescopedKeys.add(Multiscopes.bindAsPrescopedKey(binder(), TableScope.class, Table.class, Seating.class));
+			}
+		});
+
+		ScopedKey<Tablecloth> clothKey = ScopedKey.of(Tablecloth.class);
+		Tablecloth cloth = new Tablecloth();
+		ScopedValues values = ScopedValues.builder().put(clothKey, new Tablecloth()).put(clothKey, cloth).build();
+		assertEquals(1, values.size());
+
+		ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		ScopeInstance table2 = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		table.seed(values);
+		table2.seed(values);
+		assertSame(cloth, table.tryGet(clothKey.getKey()));
+		assertSame(cloth, table2.get(Tablecloth.class));
+
+		table2.putInScope(clothKey, null);
+		assertTrue(table2.isPresent(clothKey.getKey()));
+		assertNull(table2.get(Tablecloth.class));
+
+		Seating seating = new Seating();
+		table.putInScope(prescopedKeys.get(0), seating);
+		assertSame(seating, table.get(Key.get(Seating.class, Table.class)));
+	}
+
+	@Test public void testKeyedInstances() {
+		inj = Guice.createInjector(new AbstractModule() {
+			@Override protected void configure() {
+				Multiscopes.newBinder(binder(), TableScope.class, Table.class, NewTableInstance.class).bindKeyedInstances(String.class, "maximumSize=2");
+			}
+		});
+
+		KeyedScopeInstances<String> tables = inj.getInstance(Key.get(new TypeLiteral<KeyedScopeInstances<String>>() {
+		}, Table.class));
+		assertSame(tables, inj.getInstance(Key.get(new TypeLiteral<KeyedScopeInstances<String>>() {
+		}, Table.class)));
+
+		ScopeInstance first = tables.instanceFor("first");
+		assertSame(first, tables.instanceFor("first"));
+		assertSame(first, tables.getIfPresent("first"));
+		assertNotSame(first, tables.instanceFor("second"));
+		assertNull(tables.getIfPresent("third"));
+
+		Tablecloth cloth;
+		try {
+			first.enterScope();
+			cloth = inj.getInstance(Tablecloth.class);
+		} finally {
+			first.exitScope();
+		}
+		assertSame(cloth, tables.instanceFor("first").get(Tablecloth.class));
+
+		tables.instanceFor("third");
+		tables.instanceFor("fourth");
+		assertTrue(tables.size() <= 2);
+
+		ScopeInstance fourth = tables.getIfPresent("fourth");
+		tables.invalidate("fourth");
+		assertNull(tables.getIfPresent("fourth"));
+		assertTrue(fourth.isClosed());
+	}
+
+	@Test public void testKeyedInstancesWithLiveInstanceLimit() {
+		inj = Guice.createInjector(new AbstractModule() {
+			@Override protected void configure() {
+				Multiscopes.newBinder(binder(), TableScope.class, Table.class, NewTableInstance.class).limitLiveInstances(2, AdmissionPolicy.FAIL, 0, TimeUnit.MILLISECONDS).bindKeyedInstances(String.class, "maximumSize=1");
+			}
+		});
+		KeyedScopeInstances<String> tables = inj.getInstance(Key.get(new TypeLiteral<KeyedScopeInstances<String>>() {
+		}, Table.class));
+
+		// evicted tenants give their place back, so the limit only bounds the cached ones
+		ScopeInstance first = tables.instanceFor("first");
+		Candle candle = first.get(Candle.class);
+		for (int i = 0; i < 10; i++) {
+			tables.instanceFor("tenant" + i);
+		}
+		assertTrue(first.isClosed());
+		assertTrue(candle.closed);
+
+		// an evicted instance isn't closed under the thread that's in it
+		ScopeInstance entered = tables.instanceFor("entered");
+		try {
+			entered.enterScope();
+			tables.instanceFor("other");
+			assertFalse(entered.isClosed());
+		} finally {
+			entered.exitScope();
+		}
+		assertTrue(entered.isClosed());
+	}
+
+	@Test public void testClose() {
+		inj = Guice.createInjector(new UnboundedModule());
+
+		ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		Tablecloth cloth;
+		try {
+			table.enterScope();
+			cloth = inj.getInstance(Tablecloth.class);
+			assertSame(cloth, inj.getInstance(Tablecloth.class));
+
+			table.close();
+			assertTrue(table.isClosed());
+			assertFalse(table.isPresent(Key.get(Tablecloth.class)));
+			try {
+				inj.getInstance(Tablecloth.class);
+				fail();
+			} catch (ProvisionException e) {
+				assertTrue(e.getCause() instanceof OutOfScopeException);
+			}
+		} finally {
+			table.exitScope();
+		}
+
+		try {
+			table.enterScope();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		try {
+			table.putInScope(Key.get(Tablecloth.class), cloth);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		table.close();
+	}
+
+	@Test public void testLayers() {
+		inj = Guice.createInjector(new UnboundedModule());
+
+		ScopeInstance base = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		Tablecloth baseCloth = base.get(Tablecloth.class);
+		ScopeInstance first = base.newLayer();
+		ScopeInstance second = base.newLayer();
+		assertSame(base, first.getParentLayer());
+		assertNull(base.getParentLayer());
+		assertTrue(first.getInstanceId() != second.getInstanceId());
+
+		// objects of the parent are shared, others are created in the layer
+		first.enterScope();
+		try {
+			assertSame(baseCloth, inj.getInstance(Tablecloth.class));
+			assertSame(first, inj.getInstance(Key.get(ScopeInstance.class, Table.class)));
+			Legs firstLegs = inj.getInstance(Legs.class);
+			assertSame(firstLegs, inj.getInstance(Legs.class));
+			assertFalse(base.isPresent(Key.get(Legs.class)));
+			assertTrue(first.isPresent(Key.get(Tablecloth.class)));
+		} finally {
+			first.exitScope();
+		}
+		assertSame(baseCloth, second.get(Tablecloth.class));
+		assertNotSame(first.get(Legs.class), second.get(Legs.class));
+
+		// objects put in a layer hide the parent's
+		Tablecloth secondCloth = new Tablecloth();
+		second.putInScope(Key.get(Tablecloth.class), secondCloth);
+		second.enterScope();
+		try {
+			assertSame(secondCloth, inj.getInstance(Tablecloth.class));
+		} finally {
+			second.exitScope();
+		}
+		assertSame(baseCloth, first.get(Tablecloth.class));
+
+		// layers of a closed parent create their own objects
+		base.close();
+		first.enterScope();
+		try {
+			Tablecloth firstCloth = inj.getInstance(Tablecloth.class);
+			assertNotSame(baseCloth, firstCloth);
+			assertSame(firstCloth, inj.getInstance(Tablecloth.class));
+		} finally {
+			first.exitScope();
+		}
+		try {
+			base.newLayer();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test public void testFreeze() {
+		inj = Guice.createInjector(new UnboundedModule());
+
+		ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		Legs legs = table.get(Legs.class);
+		assertFalse(table.isFrozen());
+		table.freeze();
+		assertTrue(table.isFrozen());
+		assertSame(legs, table.tryGet(Key.get(Legs.class)));
+
+		// late writes are still seen
+		table.enterScope();
+		try {
+			assertSame(legs, inj.getInstance(Legs.class));
+			Tablecloth cloth = inj.getInstance(Tablecloth.class);
+			assertSame(cloth, inj.getInstance(Tablecloth.class));
+			assertSame(cloth, table.tryGet(Key.get(Tablecloth.class)));
+			Tablecloth replaced = new Tablecloth();
+			table.putInScope(Key.get(Tablecloth.class), replaced);
+			assertSame(replaced, inj.getInstance(Tablecloth.class));
+			assertSame(table, inj.getInstance(Key.get(ScopeInstance.class, Table.class)));
+		} finally {
+			table.exitScope();
+		}
+		assertTrue(table.isFrozen());
+
+		table.close();
+		assertFalse(table.isFrozen());
+		assertNull(table.tryGet(Key.get(Legs.class)));
+		table.freeze();
+		assertFalse(table.isFrozen());
+	}
+
+	@Test public void testFreezeAfterReads() {
+		inj = Guice.createInjector(new AbstractModule() {
+			@Override protected void configure() {
+				Multiscopes.newBinder(binder(), TableScope.class, Table.class, NewTableInstance.class).freezeAfterReads(3);
+			}
+		});
+
+		ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		Legs legs = table.get(Legs.class);
+		table.tryGet(Key.get(Legs.class));
+		table.tryGet(Key.get(Legs.class));
+		// a write starts the count again
+		table.putInScope(Key.get(Tablecloth.class), new Tablecloth());
+		table.tryGet(Key.get(Legs.class));
+		table.tryGet(Key.get(Legs.class));
+		assertFalse(table.isFrozen());
+		assertSame(legs, table.tryGet(Key.get(Legs.class)));
+		assertTrue(table.isFrozen());
+	}
+
+	@Test public void testAffinityExecutor() throws Exception {
+		inj = Guice.createInjector(new UnboundedModule());
+		final Provider<Tablecloth> cloths = inj.getProvider(Tablecloth.class);
+		ScopeAffinityExecutor executor = new ScopeAffinityExecutor(2);
+		try {
+			ScopeInstance table1 = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+			ScopeInstance table2 = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+			assertFalse(executor.workerOf(table1) == executor.workerOf(table2));
+
+			Callable<Thread> task = new Callable<Thread>() {
+				@Override public Thread call() {
+					cloths.get();
+					return Thread.currentThread();
+				}
+			};
+			List<ListenableFuture<Thread>> threads1 = Lists.newArrayList();
+			List<ListenableFuture<Thread>> threads2 = Lists.newArrayList();
+			for (int i = 0; i < 100; i++) {
+				threads1.add(executor.submit(table1, task));
+				threads2.add(executor.submit(table2, task));
+			}
+			assertEquals(1, Sets.newHashSet(Futures.allAsList(threads1).get()).size());
+			assertEquals(1, Sets.newHashSet(Futures.allAsList(threads2).get()).size());
+			assertNotSame(threads1.get(0).get(), threads2.get(0).get());
+
+			Tablecloth cloth1 = executor.submit(table1, new Callable<Tablecloth>() {
+				@Override public Tablecloth call() {
+					return cloths.get();
+				}
+			}).get();
+			assertSame(cloth1, table1.tryGet(Key.get(Tablecloth.class)));
+			assertNotSame(cloth1, table2.tryGet(Key.get(Tablecloth.class)));
+
+			// a task that leaves its thread interrupted doesn't stop the worker
+			executor.submit(table1, new Callable<Void>() {
+				@Override public Void call() {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}).get(5, TimeUnit.SECONDS);
+			assertFalse(executor.submit(table1, new Callable<Boolean>() {
+				@Override public Boolean call() {
+					return Thread.currentThread().isInterrupted();
+				}
+			}).get(5, TimeUnit.SECONDS));
+
+			table2.close();
+			try {
+				executor.submit(table2, task).get();
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IllegalStateException);
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		try {
+			executor.execute(inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class)), new Runnable() {
+				@Override public void run() {
+				}
+			});
+			fail();
+		} catch (RejectedExecutionException e) {
+		}
+	}
+
+	@Test public void testCloseWhenDrained() throws InterruptedException {
+		inj = Guice.createInjector(new UnboundedModule());
+		final ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		assertEquals(0, table.getActiveThreads());
+
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch exit = new CountDownLatch(1);
+		Thread other = new Thread(new Runnable() {
+			@Override public void run() {
+				table.enterScope();
+				try {
+					entered.countDown();
+					exit.await();
+				} catch (InterruptedException e) {
+				} finally {
+					table.exitScope();
+				}
+			}
+		});
+		other.start();
+		entered.await();
+
+		try {
+			table.enterScope();
+			assertEquals(2, table.getActiveThreads());
+		} finally {
+			table.exitScope();
+		}
+		assertEquals(1, table.getActiveThreads());
+
+		table.closeWhenDrained();
+		assertFalse(table.isClosed());
+		try {
+			table.enterScope();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		assertFalse(table.isInScope());
+		assertEquals(1, table.getActiveThreads());
+
+		// provisioning in the draining instance fails, and leaves the thread in its own instance
+		ScopeInstance current = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		current.enterScope();
+		try {
+			table.get(Legs.class);
+			fail();
+		} catch (IllegalStateException e) {
+		} finally {
+			assertTrue(current.isInScope());
+			current.exitScope();
+		}
+		assertEquals(1, table.getActiveThreads());
+
+		exit.countDown();
+		other.join(5000);
+		assertEquals(0, table.getActiveThreads());
+		assertTrue(table.isClosed());
+
+		ScopeInstance idle = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		idle.closeWhenDrained();
+		assertTrue(idle.isClosed());
+	}
+
+	@Test public void testLeakDetector() throws Exception {
+		inj = Guice.createInjector(new UnboundedModule());
+		final ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		final List<ScopeInstance> leaked = Lists.newArrayList();
+		final List<Throwable> sites = Lists.newArrayList();
+		ScopeLeakDetector detector = new ScopeLeakDetector(1, new ScopeLeakDetector.LeakListener() {
+			@Override public void leaked(ScopeInstance instance, Throwable enterSite) {
+				leaked.add(instance);
+				sites.add(enterSite);
+			}
+		});
+
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			Executor executor = detector.wrap(pool);
+			final CountDownLatch done = new CountDownLatch(1);
+			executor.execute(new Runnable() {
+				@Override public void run() {
+					table.enterScope();
+					done.countDown();
+				}
+			});
+			done.await();
+			Future<Boolean> inScope = pool.submit(new Callable<Boolean>() {
+				@Override public Boolean call() {
+					return table.isInScope();
+				}
+			});
+			assertFalse(inScope.get());
+		} finally {
+			pool.shutdown();
+		}
+
+		assertEquals(1, detector.getLeakCount());
+		assertEquals(Collections.singletonList(table), leaked);
+		assertNotNull(sites.get(0));
+		assertEquals(0, table.getActiveThreads());
+
+		// scopes that were entered before the task aren't leaks of the task
+		try {
+			table.enterScope();
+			detector.wrap(new Runnable() {
+				@Override public void run() {
+				}
+			}).run();
+			assertTrue(table.isInScope());
+			assertEquals(1, detector.checkCurrentThread());
+			assertFalse(table.isInScope());
+		} finally {
+			table.exitScope();
+		}
+		assertNull(sites.get(1));
+	}
+
+	@Test public void testAsyncProvider() throws Exception {
+		final ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			inj = Guice.createInjector(new UnboundedModule(), new AbstractModule() {
+				@Override protected void configure() {
+					bind(Executor.class).annotatedWith(Table.class).toInstance(pool);
+					Multiscopes.bindAsync(binder(), TableScope.class, Table.class, Key.get(Tablecloth.class), Key.get(Executor.class, Table.class));
+				}
+			});
+			Key<ListenableFuture<Tablecloth>> futureKey = new Key<ListenableFuture<Tablecloth>>() {
+			};
+			ScopeInstance table1 = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+			ScopeInstance table2 = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+
+			ListenableFuture<Tablecloth> cloth1;
+			try {
+				table1.enterScope();
+				cloth1 = inj.getInstance(futureKey);
+				assertSame(cloth1, inj.getInstance(futureKey));
+				assertSame(cloth1.get(), inj.getInstance(Tablecloth.class));
+			} finally {
+				table1.exitScope();
+			}
+
+			ListenableFuture<Tablecloth> cloth2 = table2.get(futureKey);
+			assertNotSame(cloth1.get(), cloth2.get());
+			assertSame(cloth2.get(), table2.tryGet(Key.get(Tablecloth.class)));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test public void testScopeCaching() {
+		inj = Guice.createInjector(new AbstractModule() {
+			@Override protected void configure() {
+				Multiscopes.newBinder(binder(), TableScope.class, Table.class, NewTableInstance.class).enableScopeCaching("maximumSize=100");
+			}
+		});
+		Multiscope scope = inj.getInstance(Key.get(Multiscope.class, Table.class));
+		Measurer measurer = inj.getInstance(Measurer.class);
+		ScopeInstance table1 = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		ScopeInstance table2 = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+
+		try {
+			table1.enterScope();
+			assertEquals(9, measurer.area(3));
+			assertEquals(9, measurer.area(3));
+			assertEquals(16, measurer.area(4));
+			assertNull(measurer.label(null));
+			assertNull(measurer.label(null));
+		} finally {
+			table1.exitScope();
+		}
+		assertEquals(3, measurer.calls);
+		assertEquals(2, scope.getMetrics().getCacheHits().sum());
+		assertEquals(3, scope.getMetrics().getCacheMisses().sum());
+
+		// each instance has its own cache
+		try {
+			table2.enterScope();
+			assertEquals(9, measurer.area(3));
+		} finally {
+			table2.exitScope();
+		}
+		assertEquals(4, measurer.calls);
+
+		// calls outside of the scope aren't cached
+		measurer.area(3);
+		measurer.area(3);
+		assertEquals(6, measurer.calls);
+	}
+
+	@Test public void testPassivation() {
+		inj = Guice.createInjector(new AbstractModule() {
+			@Override protected void configure() {
+				Multiscopes.newBinder(binder(), TableScope.class, Table.class, NewTableInstance.class).passivateIdleInstances(0, TimeUnit.MILLISECONDS, new File(System.getProperty("java.io.tmpdir")), Key.get(Seating.class));
+			}
+		});
+		Multiscope scope = inj.getInstance(Key.get(Multiscope.class, Table.class));
+		ScopePassivation passivation = inj.getInstance(Key.get(ScopePassivation.class, Table.class));
+		ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+
+		Seating seating;
+		Tablecloth cloth;
+		try {
+			table.enterScope();
+			seating = inj.getInstance(Seating.class);
+			seating.seats = 4;
+			cloth = inj.getInstance(Tablecloth.class);
+			// instances with threads in them aren't passivated
+			assertEquals(0, passivation.passivate(table));
+		} finally {
+			table.exitScope();
+		}
+
+		assertEquals(1, passivation.passivateIdle());
+		assertEquals(1, scope.getMetrics().getPassivatedObjects().sum());
+		assertEquals(0, scope.getMetrics().getRestoredObjects().sum());
+
+		try {
+			table.enterScope();
+			Seating restored = inj.getInstance(Seating.class);
+			assertNotSame(seating, restored);
+			assertEquals(4, restored.seats);
+			assertSame(restored, inj.getInstance(Seating.class));
+			// objects of other keys stay in memory
+			assertSame(cloth, inj.getInstance(Tablecloth.class));
+		} finally {
+			table.exitScope();
+		}
+		assertEquals(1, scope.getMetrics().getRestoredObjects().sum());
+
+		// layers read their parent without entering it
+		ScopeInstance layer = table.newLayer();
+		assertEquals(0, passivation.passivate(table));
+		layer.close();
+
+		assertEquals(1, passivation.passivate(table));
+		table.close();
+		assertFalse(table.isPresent(Key.get(Seating.class)));
+	}
+
+	@Test public void testEnterWhilePassivating() throws Exception {
+		final CountDownLatch sweeping = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		inj = Guice.createInjector(new AbstractModule() {
+			@Override protected void configure() {
+				Multiscopes.newBinder(binder(), TableScope.class, Table.class, NewTableInstance.class).passivateIdleInstances(0, TimeUnit.MILLISECONDS, new File(System.getProperty("java.io.tmpdir")), new JavaScopeSerializer(Key.get(Seating.class)) {
+					@Override public byte[] serialize(Object value) throws IOException {
+						sweeping.countDown();
+						try {
+							proceed.await();
+						} catch (InterruptedException e) {
+							throw new IOException(e);
+						}
+						return super.serialize(value);
+					}
+				});
+			}
+		});
+		final ScopePassivation passivation = inj.getInstance(Key.get(ScopePassivation.class, Table.class));
+		final ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		table.get(Seating.class);
+
+		Thread passivating = new Thread(new Runnable() {
+			@Override public void run() {
+				passivation.passivate(table);
+			}
+		});
+		passivating.start();
+		sweeping.await();
+
+		final AtomicBoolean entered = new AtomicBoolean(false);
+		final AtomicReference<Seating> seating = new AtomicReference<Seating>();
+		Thread entering = new Thread(new Runnable() {
+			@Override public void run() {
+				table.enterScope();
+				try {
+					entered.set(true);
+					seating.set(inj.getInstance(Seating.class));
+				} finally {
+					table.exitScope();
+				}
+			}
+		});
+		entering.start();
+		Thread.sleep(50);
+		// waits for the sweep instead of reading the object it's about to drop
+		assertFalse(entered.get());
+
+		proceed.countDown();
+		passivating.join();
+		entering.join();
+		assertTrue(entered.get());
+		assertSame(seating.get(), table.get(Seating.class));
+		assertEquals(1, inj.getInstance(Key.get(Multiscope.class, Table.class)).getMetrics().getRestoredObjects().sum());
+	}
+
+	@Test public void testLiveInstanceLimit() {
+		inj = Guice.createInjector(new LimitedModule(2, AdmissionPolicy.FAIL, 0));
+		Multiscope scope = inj.getInstance(Key.get(Multiscope.class, Table.class));
+		Provider<ScopeInstance> tables = inj.getProvider(Key.get(ScopeInstance.class, NewTableInstance.class));
+
+		ScopeInstance table1 = tables.get();
+		tables.get();
+		try {
+			tables.get();
+			fail();
+		} catch (ProvisionException e) {
+			assertTrue(e.getCause() instanceof ScopeAdmissionException);
+		}
+		assertEquals(2, scope.getMetrics().getLiveInstances().sum());
+		assertEquals(1, scope.getMetrics().getRejectedInstances().sum());
+
+		table1.close();
+		table1.close();
+		assertEquals(1, scope.getMetrics().getLiveInstances().sum());
+		tables.get();
+		assertEquals(2, scope.getMetrics().getLiveInstances().sum());
+	}
+
+	@Test public void testLiveInstanceEviction() {
+		inj = Guice.createInjector(new LimitedModule(2, AdmissionPolicy.EVICT_IDLE, 0));
+		Multiscope scope = inj.getInstance(Key.get(Multiscope.class, Table.class));
+		Provider<ScopeInstance> tables = inj.getProvider(Key.get(ScopeInstance.class, NewTableInstance.class));
+
+		ScopeInstance table1 = tables.get();
+		ScopeInstance table2 = tables.get();
+		ScopeInstance table3;
+		try {
+			table1.enterScope();
+			// the entered instance isn't evicted
+			table3 = tables.get();
+			assertTrue(table2.isClosed());
+			assertFalse(table1.isClosed());
+		} finally {
+			table1.exitScope();
+		}
+
+		// table1 was entered more recently than table3 was looked at
+		tables.get();
+		assertTrue(table3.isClosed());
+		assertFalse(table1.isClosed());
+		assertEquals(2, scope.getMetrics().getEvictedInstances().sum());
+		assertEquals(2, scope.getMetrics().getLiveInstances().sum());
+	}
+
+	@Test public void testLayersPinTheirParent() {
+		inj = Guice.createInjector(new LimitedModule(2, AdmissionPolicy.EVICT_IDLE, 0));
+		Provider<ScopeInstance> tables = inj.getProvider(Key.get(ScopeInstance.class, NewTableInstance.class));
+
+		ScopeInstance base = tables.get();
+		ScopeInstance layer = base.newLayer();
+		try {
+			layer.enterScope();
+			// the base isn't entered, but the layer in use reads it
+			tables.get();
+			fail();
+		} catch (ProvisionException e) {
+			assertTrue(e.getCause() instanceof ScopeAdmissionException);
+		} finally {
+			layer.exitScope();
+		}
+		assertFalse(base.isClosed());
+
+		// the idle layer is evicted instead of its parent
+		tables.get();
+		assertTrue(layer.isClosed());
+		assertFalse(base.isClosed());
+	}
+
+	@Test public void testEvictionWhileEntering() throws InterruptedException {
+		inj = Guice.createInjector(new LimitedModule(2, AdmissionPolicy.EVICT_IDLE, 0));
+		final Provider<ScopeInstance> tables = inj.getProvider(Key.get(ScopeInstance.class, NewTableInstance.class));
+		final AtomicReference<ScopeInstance> latest = new AtomicReference<ScopeInstance>(tables.get());
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		Thread evictor = new Thread(new Runnable() {
+			@Override public void run() {
+				try {
+					for (int i = 0; i < 5000; i++) {
+						latest.set(tables.get());
+					}
+				} catch (Throwable t) {
+					failure.set(t);
+				} finally {
+					done.set(true);
+				}
+			}
+		});
+		evictor.start();
+		while (!done.get()) {
+			ScopeInstance table = latest.get();
+			try {
+				table.enterScope();
+			} catch (IllegalStateException e) {
+				// evicted before it was entered
+				continue;
+			}
+			try {
+				// an entered instance is never closed under the thread
+				assertNotNull(inj.getInstance(Legs.class));
+				assertFalse(table.isClosed());
+			} finally {
+				table.exitScope();
+			}
+		}
+		evictor.join();
+		assertNull(failure.get());
+	}
+
+	@Test public void testLiveInstanceBlocking() throws InterruptedException {
+		inj = Guice.createInjector(new LimitedModule(1, AdmissionPolicy.BLOCK, 5000));
+		Provider<ScopeInstance> tables = inj.getProvider(Key.get(ScopeInstance.class, NewTableInstance.class));
+
+		final ScopeInstance table1 = tables.get();
+		Thread closer = new Thread(new Runnable() {
+			@Override public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					return;
+				}
+				table1.close();
+			}
+		});
+		closer.start();
+		ScopeInstance table2 = tables.get();
+		assertTrue(table1.isClosed());
+		assertFalse(table2.isClosed());
+		closer.join();
+
+		inj = Guice.createInjector(new LimitedModule(1, AdmissionPolicy.BLOCK, 50));
+		tables = inj.getProvider(Key.get(ScopeInstance.class, NewTableInstance.class));
+		tables.get();
+		try {
+			tables.get();
+			fail();
+		} catch (ProvisionException e) {
+			assertTrue(e.getCause() instanceof ScopeAdmissionException);
+		}
+	}
+
 	@Test public void testExceptionWhenNotPrescoped() {
 		inj = Guice.createInjector(new UnboundedModule(), new AbstractModule() {
 
@@ -251,6 +1083,61 @@ public class UnboundedTests {
 		assertTrue(caught);
 	}
 
+	@Test public void testScopedLookup() {
+		inj = Guice.createInjector(new UnboundedModule());
+
+		Multiscope scope = inj.getInstance(Key.get(Multiscope.class, Table.class));
+		ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		Key<Legs> legsKey = Key.get(Legs.class);
+
+		assertNull(scope.tryGet(legsKey));
+		assertFalse(scope.isPresent(legsKey));
+		assertFalse(table.isPresent(legsKey));
+
+		try {
+			table.enterScope();
+			assertNull(scope.tryGet(legsKey));
+			assertFalse(scope.isPresent(legsKey));
+			assertSame(table, scope.tryGet(Key.get(ScopeInstance.class, Table.class)));
+
+			Legs legs = inj.getInstance(Legs.class);
+			assertTrue(scope.isPresent(legsKey));
+			assertSame(legs, scope.tryGet(legsKey));
+			assertSame(legs, table.tryGet(legsKey));
+		} finally {
+			table.exitScope();
+		}
+
+		assertNull(scope.tryGet(legsKey));
+		assertTrue(table.isPresent(legsKey));
+
+		table.putInScope(Key.get(Tablecloth.class), null);
+		assertTrue(table.isPresent(Key.get(Tablecloth.class)));
+		assertNull(table.tryGet(Key.get(Tablecloth.class)));
+	}
+
+	@Test public void testInstanceProvisioning() {
+		inj = Guice.createInjector(new UnboundedModule());
+
+		ScopeInstance table = inj.getInstance(Key.get(ScopeInstance.class, NewTableInstance.class));
+		Legs legs = table.get(Legs.class);
+		assertNotNull(legs);
+		assertFalse(table.isInScope());
+		assertSame(legs, table.get(Legs.class));
+		assertSame(table, table.get(Key.get(ScopeInstance.class, Table.class)));
+
+		try {
+			table.enterScope();
+			assertSame(legs, inj.getInstance(Legs.class));
+		} finally {
+			table.exitScope();
+		}
+
+		Tablecloth cloth = new Tablecloth();
+		table.putInScope(Key.get(Tablecloth.class), cloth);
+		assertSame(cloth, table.get(Tablecloth.class));
+	}
+
 	// scope binding annotation
 	@Retention(RetentionPolicy.RUNTIME) @Target({ ElementType.FIELD, ElementType.PARAMETER, ElementType.METHOD }) @BindingAnnotation public static @interface Table {
 	}
@@ -272,6 +1159,50 @@ public class UnboundedTests {
 		}
 	}
 
+	static class LimitedModule extends AbstractModule {
+		private final int maxLiveInstances;
+		private final AdmissionPolicy policy;
+		private final long timeoutMillis;
+
+		LimitedModule(int maxLiveInstances, AdmissionPolicy policy, long timeoutMillis) {
+			this.maxLiveInstances = maxLiveInstances;
+			this.policy = policy;
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		@Override protected void configure() {
+			Multiscopes.newBinder(binder(), TableScope.class, Table.class, NewTableInstance.class).limitLiveInstances(maxLiveInstances, policy, timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public static class Measurer {
+		int calls = 0;
+
+		@ScopeCached(Table.class) public int area(int side) {
+			calls++;
+			return side * side;
+		}
+
+		@ScopeCached(Table.class) public String label(String name) {
+			calls++;
+			return name;
+		}
+	}
+
+	@TableScope public static class Candle implements Closeable {
+		volatile boolean closed = false;
+
+		@Override public void close() {
+			closed = true;
+		}
+	}
+
+	@TableScope public static class Seating implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		int seats = 0;
+	}
+
 	@TableScope public static class Tablecloth {
 	}
 }